@@ -17,9 +17,12 @@ package com.chilliwebs.ezjdo;
 
 import com.chilliwebs.ezjdo.annotations.And;
 import com.chilliwebs.ezjdo.annotations.BaseConfig;
+import com.chilliwebs.ezjdo.annotations.Cached;
 import com.chilliwebs.ezjdo.annotations.Column;
 import com.chilliwebs.ezjdo.annotations.Key;
 import com.chilliwebs.ezjdo.annotations.Many;
+import com.chilliwebs.ezjdo.annotations.Version;
+import com.chilliwebs.ezjdo.exceptions.ezJDOConcurrencyException;
 import com.chilliwebs.ezjdo.exceptions.ezJDOException;
 import com.chilliwebs.ezjdo.exceptions.ezJDOValidationException;
 import java.io.File;
@@ -32,12 +35,24 @@ import java.math.BigDecimal;
 import java.sql.*;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 import java.util.logging.ConsoleHandler;
 import java.util.logging.Handler;
 import java.util.logging.Level;
@@ -99,6 +114,56 @@ public class BaseObject {
     
     public final static Pattern EMAIL_PATTERN = Pattern.compile("[a-z0-9!#$%&'*+/=?^_`{|}~-]+(?:\\.[a-z0-9!#$%&'*+/=?^_`{|}~-]+)*@(?:[a-z0-9](?:[a-z0-9-]*[a-z0-9])?\\.)+[a-z0-9](?:[a-z0-9-]*[a-z0-9])?", Pattern.CASE_INSENSITIVE);
     
+    /**
+     * Sets the number of threads that run the async methods. Every thread
+     * keeps its own connection, so this is also the number of connections the
+     * async methods can use at once. The default is 8 or the
+     * ezjdo.async.threads system property. Up to 64 calls for every thread
+     * can wait for a thread, past that the async methods return a future that
+     * failed with an ezJDOException instead of running on the calling thread.
+     *
+     * @param threads the number of threads.
+     */
+    public final static synchronized void setAsyncThreads(int threads) {
+        asyncThreads = threads;
+        if (asyncExecutor != null) {
+            // the queue is sized from the threads, the waiting calls still run on the old threads
+            asyncExecutor.shutdown();
+            asyncExecutor = null;
+        }
+    }
+
+    /* package */ static synchronized Executor getAsyncExecutor() {
+        if (asyncExecutor == null) {
+            asyncExecutor = new ThreadPoolExecutor(asyncThreads, asyncThreads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(asyncThreads * ASYNC_QUEUE_PER_THREAD), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "ezjdo-async");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            }, new ThreadPoolExecutor.AbortPolicy());
+            // idle threads end, which closes their connections
+            asyncExecutor.allowCoreThreadTimeOut(true);
+        }
+        return asyncExecutor;
+    }
+
+    /**
+     * Runs the supplier on the async threads. When the queue is full the
+     * future fails instead of the supplier running on the calling thread,
+     * where it would use the caller's connection and transaction.
+     */
+    private static <T> CompletableFuture<T> supplyAsync(Supplier<T> supplier) {
+        try {
+            return CompletableFuture.supplyAsync(supplier, getAsyncExecutor());
+        } catch (RejectedExecutionException ex) {
+            CompletableFuture<T> future = new CompletableFuture<T>();
+            future.completeExceptionally(new CompletionException(new ezJDOException("Too many async calls are waiting for the " + asyncThreads + " async threads, see setAsyncThreads().", ex)));
+            return future;
+        }
+    }
+
     public final static void setDebugLevel(Level level) {
         log.setLevel(level);
         //get the top Logger:
@@ -131,6 +196,7 @@ public class BaseObject {
     }
     private final static HashMap<Long, HashMap<String, Connection>> threadConnectionstringConnections = new HashMap<Long, HashMap<String, Connection>>();
     private static String[] dbName = new String[5];
+    private static Integer[] dbMajorVersion = new Integer[5];
     private static String[] tables = new String[5];
     private static String[] classes = new String[5];
     private static String[] sqlDriverClasses = new String[5];
@@ -141,10 +207,17 @@ public class BaseObject {
     private static Integer[][] attributeLengths = new Integer[5][];
     private static Boolean[][] attributeNotNulls = new Boolean[5][];
     private static String[][] keys = new String[5][];
+    private static Integer[] versionPos = new Integer[5];
     private static Object[][] defaultValues = new Object[5][];
     private static Many[][][] mappings = new Many[5][][];
+    private static RelationPlan[][] relationPlans = new RelationPlan[5][];
+    private static EntityCache[] entityCaches = new EntityCache[5];
     private static MySQLQueryHelper mysqlQueryHelper;
     private static MSSQLQueryHelper mssqlQueryHelper;
+    /* package */ static final int BATCH_SIZE = 500;
+    private static int asyncThreads = Integer.getInteger("ezjdo.async.threads", 8);
+    private static ThreadPoolExecutor asyncExecutor;
+    private static final int ASYNC_QUEUE_PER_THREAD = 64; // calls that can wait for each async thread
     /* package */ static Integer[][] keyPos = new Integer[5][];
     /* package */ Object[] originalValues;
     /* package */ Field[] fields;
@@ -152,6 +225,7 @@ public class BaseObject {
     /* package */ String[] fieldMessages;
     /* package */ Boolean newRecord = null;
     /* package */ int tableIndex = -1;
+    /* package */ HashMap<Class<?>, ResultList<?>> relations; // many objects loaded with the object
 
     /**
      * The Default constructor for BaseObject. The BaseObject constructors are
@@ -178,7 +252,9 @@ public class BaseObject {
      * object. Calling this constructor marks the record as <b>not</b> new,
      * however this constructor does not execute a select statement. This
      * constructor would be used to update a record by its primary id(s) without
-     * having to do a select statement first.
+     * having to do a select statement first. If the class has a Version
+     * attribute the update or delete of such an object is not checked against
+     * a version, because none was loaded.
      *
      * @param keys the values of the primary keys that identify the object.
      * @throws ezJDOException
@@ -238,10 +314,16 @@ public class BaseObject {
         if (debugging) {
             log.log(Level.FINE, "BaseObject<{0}>.reload()", toString());
         }
+        relations = null;
         if (newRecord) {
             clear();
         } else {
+            Session session = Session.current();
+            EntityKey key = session == null ? null : Session.keyOf(this);
             sqlFirst(this, "SELECT * FROM " + getTableName() + " WHERE " + getKeyWhereClause(), getKeyValues());
+            if (session != null && newRecord) {
+                session.remove(this, key); // it was removed from the database
+            }
         }
     }
 
@@ -354,9 +436,35 @@ public class BaseObject {
         }
     }
 
+    /**
+     * Saves the object on the async threads, see save(). Do not change the
+     * object until the future is complete.
+     *
+     * @return a future for the number of rows changed, it completes with a
+     * CompletionException around the ezJDOException if the save fails.
+     */
+    public CompletableFuture<Integer> saveAsync() {
+        return supplyAsync(new Supplier<Integer>() {
+            @Override
+            public Integer get() {
+                try {
+                    return save();
+                } catch (ezJDOException ex) {
+                    throw new CompletionException(ex);
+                }
+            }
+        });
+    }
+
     /**
      * Saves the changes made to the object to the database.
      *
+     * <p>If the class has a Version attribute the update only matches the
+     * version that was loaded and the version is incremented, when nothing
+     * matches an ezJDOConcurrencyException is thrown. An object made with the
+     * keys constructor has no loaded version, its update is not checked, the
+     * version is incremented in the database and stays null on the object.
+     *
      * @return the number of rows affected.
      * @throws ezJDOException
      */
@@ -365,10 +473,22 @@ public class BaseObject {
             log.log(Level.FINE, "BaseObject<{0}>.save()", toString());
         }
         int rowsAffected = 0;
+        Session session = Session.current();
+        EntityKey sessionKey = newRecord ? null : Session.keyOf(this);
         try {
             if (locallyModified()) {
                 valid(); // check for validity
+                int version = versionPos[tableIndex];
                 if (newRecord) {
+                    if (version >= 0) {
+                        try {
+                            if (fields[version].get(this) == null) {
+                                fields[version].set(this, nextVersion(null));
+                            }
+                        } catch (IllegalAccessException ex) {
+                        } catch (IllegalArgumentException ex) {
+                        }
+                    }
                     StringBuilder sb = new StringBuilder();
                     StringBuilder sb2 = new StringBuilder();
                     for (int i = 0; i < attributes[tableIndex].length; i++) {
@@ -406,6 +526,13 @@ public class BaseObject {
                         }
                     }
                     rowsAffected = prepStmt.executeUpdate();
+                    if (version >= 0) {
+                        try {
+                            originalValues[version] = fields[version].get(this);
+                        } catch (IllegalAccessException ex) {
+                        } catch (IllegalArgumentException ex) {
+                        }
+                    }
                     if (saveKeys[tableIndex]) {
                         for (int i = 0; i < keyPos[tableIndex].length; i++) {
                             try {
@@ -449,6 +576,9 @@ public class BaseObject {
                     StringBuilder sb = new StringBuilder();
                     StringBuilder sb2 = new StringBuilder();
                     for (int i = 0; i < attributes[tableIndex].length; i++) {
+                        if (i == version) { // the version is always set below
+                            continue;
+                        }
                         if (!isKeyAttributeAtPos(i)) { // not key attribute
                             if (!(values[i] != null ? values[i].equals(originalValues[i]) : originalValues[i] != null ? originalValues[i].equals(values[i]) : true)) {
                                 sb.append(", ").append(attributes[tableIndex][i]).append(" = ?");
@@ -462,6 +592,16 @@ public class BaseObject {
                             }
                         }
                     }
+                    Object nextVersion = null;
+                    // without a loaded version (keys constructor) the update is not checked
+                    boolean checkVersion = version >= 0 && originalValues[version] != null;
+                    if (checkVersion) {
+                        nextVersion = nextVersion(originalValues[version]);
+                        sb.append(", ").append(attributes[tableIndex][version]).append(" = ?");
+                        sb2.append(" AND ").append(attributes[tableIndex][version]).append(" = ?");
+                    } else if (version >= 0) {
+                        sb.append(", ").append(attributes[tableIndex][version]).append(" = COALESCE(").append(attributes[tableIndex][version]).append(", 0) + 1");
+                    }
                     String SQL = "UPDATE " + getTableName() + " SET " + sb.substring(2) + " WHERE " + sb2.substring(2);
                     if (debugging) {
                         log.log(Level.INFO, SQL);
@@ -469,7 +609,7 @@ public class BaseObject {
                     PreparedStatement prepStmt = getConnection(tableIndex, Thread.currentThread().getId()).prepareStatement(SQL);
                     int n = 1;
                     for (int i = 0; i < attributes[tableIndex].length; i++) {
-                        if (saveKeys[tableIndex] || !isKeyAttributeAtPos(i)) { // not key attribute
+                        if (i != version && (saveKeys[tableIndex] || !isKeyAttributeAtPos(i))) { // not key attribute
                             if (!(values[i] != null ? values[i].equals(originalValues[i]) : originalValues[i] != null ? originalValues[i].equals(values[i]) : true)) {
                                 if (values[i] instanceof byte[]) {
                                     byte[] b = (byte[]) (values[i]);
@@ -483,14 +623,38 @@ public class BaseObject {
                             }
                         }
                     }
+                    if (checkVersion) {
+                        prepStmt.setObject(n++, nextVersion);
+                        if (debugging) {
+                            log.log(Level.FINEST, "  * param: {0}", String.valueOf(nextVersion));
+                        }
+                    }
                     for (int i = 0; i < keyPos[tableIndex].length; i++) {
                         prepStmt.setObject(n++, originalValues[keyPos[tableIndex][i]]);
                         if (debugging) {
                             log.log(Level.FINEST, "  * keyparam: {0}", String.valueOf(values[i]));
                         }
                     }
+                    if (checkVersion) {
+                        prepStmt.setObject(n++, originalValues[version]);
+                        if (debugging) {
+                            log.log(Level.FINEST, "  * versionparam: {0}", String.valueOf(originalValues[version]));
+                        }
+                    }
                     rowsAffected = prepStmt.executeUpdate();
                     prepStmt.close();
+                    if (checkVersion) {
+                        if (rowsAffected == 0) {
+                            evictConflict(tableIndex, sessionKey);
+                            throw new ezJDOConcurrencyException("The call to save() failed because \"" + toString() + "\" was changed or removed in the database after it was loaded.");
+                        }
+                        originalValues[version] = nextVersion;
+                        try {
+                            fields[version].set(this, nextVersion);
+                        } catch (IllegalAccessException ex) {
+                        } catch (IllegalArgumentException ex) {
+                        }
+                    }
                 }
             } else {
                 if (debugging) {
@@ -502,15 +666,52 @@ public class BaseObject {
             throw new ezJDOException("The call to save() failed. Please make sure the class \"" + className + "\" is implemented correctly.", ex);
         }
         newRecord = false;
+        if (rowsAffected > 0) {
+            EntityKey savedKey = Session.keyOf(this);
+            if (sessionKey != null && !sessionKey.equals(savedKey)) {
+                invalidate(tableIndex, sessionKey);
+            }
+            invalidate(tableIndex, savedKey);
+        }
+        if (session != null) {
+            // the keys can change when they are saved
+            session.remove(this, sessionKey);
+            session.put(this);
+        }
         if (debugging) {
             log.log(Level.FINEST, "=> rowsAffected: {0}", rowsAffected);
         }
         return rowsAffected;
     }
 
+    /**
+     * Deletes the object on the async threads, see delete(). Do not change
+     * the object until the future is complete.
+     *
+     * @return a future for the number of rows deleted, it completes with a
+     * CompletionException around the ezJDOException if the delete fails.
+     */
+    public CompletableFuture<Integer> deleteAsync() {
+        return supplyAsync(new Supplier<Integer>() {
+            @Override
+            public Integer get() {
+                try {
+                    return delete();
+                } catch (ezJDOException ex) {
+                    throw new CompletionException(ex);
+                }
+            }
+        });
+    }
+
     /**
      * delete the current object from the database.
      *
+     * <p>If the class has a Version attribute the delete only matches the
+     * version that was loaded, when nothing matches an
+     * ezJDOConcurrencyException is thrown. An object made with the keys
+     * constructor has no loaded version, its delete is not checked.
+     *
      * @return the number of rows affected.
      * @throws ezJDOException
      */
@@ -522,7 +723,11 @@ public class BaseObject {
         if (!newRecord) {
             valid(); // check for validity
             try {
-                String SQL = "DELETE FROM " + getTableName() + " WHERE " + getKeyWhereClause();
+                int version = versionPos[tableIndex];
+                if (version >= 0 && originalValues[version] == null) {
+                    version = -1; // no loaded version (keys constructor), delete by the keys
+                }
+                String SQL = "DELETE FROM " + getTableName() + " WHERE " + getKeyWhereClause() + (version >= 0 ? " AND " + attributes[tableIndex][version] + " = ?" : "");
                 if (debugging) {
                     log.log(Level.INFO, SQL);
                 }
@@ -533,12 +738,27 @@ public class BaseObject {
                         log.log(Level.FINEST, "  * param: {0}", String.valueOf(originalValues[keyPos[tableIndex][i]]));
                     }
                 }
+                if (version >= 0) {
+                    prepStmt.setObject(keyPos[tableIndex].length + 1, originalValues[version]);
+                    if (debugging) {
+                        log.log(Level.FINEST, "  * versionparam: {0}", String.valueOf(originalValues[version]));
+                    }
+                }
                 rowsAffected = prepStmt.executeUpdate();
                 prepStmt.close();
+                if (version >= 0 && rowsAffected == 0) {
+                    evictConflict(tableIndex, Session.keyOf(this));
+                    throw new ezJDOConcurrencyException("The call to delete() failed because \"" + toString() + "\" was changed or removed in the database after it was loaded.");
+                }
             } catch (SQLException ex) {
                 String className = getCaller().getClassName();
                 throw new ezJDOException("The call to delete() failed. Please make sure the class \"" + className + "\" implemented correctly.", ex);
             }
+            invalidate(tableIndex, Session.keyOf(this));
+            Session session = Session.current();
+            if (session != null) {
+                session.evict(this);
+            }
             clear();
         }
         if (debugging) {
@@ -599,6 +819,8 @@ public class BaseObject {
      * @return <b>true</b> if attributes have been changed in the database since
      * the last time the object was retrieved.<br/><b>false</b> if the original
      * values are not changed in the database.
+     * <p>If the class has a Version attribute only the version column is read,
+     * and a record that was removed from the database counts as modified.
      * @throws ezJDOException
      */
     public final Boolean remotelyModified() throws ezJDOException {
@@ -606,7 +828,35 @@ public class BaseObject {
             log.log(Level.FINER, "BaseObject<{0}>.remotelyModified()", toString());
         }
         // TODO: use the compare operator
-        if (!newRecord) {
+        if (!newRecord && versionPos[tableIndex] >= 0) {
+            int version = versionPos[tableIndex];
+            try {
+                String SQL = "SELECT " + attributes[tableIndex][version] + " FROM " + getTableName() + " WHERE " + getKeyWhereClause();
+                if (debugging) {
+                    log.log(Level.INFO, SQL);
+                }
+                PreparedStatement prepStmt = getConnection(tableIndex, Thread.currentThread().getId()).prepareStatement(SQL);
+                prepStmt.setFetchSize(1);
+                prepStmt.setMaxRows(1);
+                for (int i = 0; i < keyPos[tableIndex].length; i++) {
+                    prepStmt.setObject(i + 1, originalValues[keyPos[tableIndex][i]]);
+                    if (debugging) {
+                        log.log(Level.FINEST, "  * keyparam: {0}", String.valueOf(originalValues[keyPos[tableIndex][i]]));
+                    }
+                }
+                ResultSet results = prepStmt.executeQuery();
+                boolean modified = !results.next() || !EntityKey.sameValue(originalValues[version], results.getObject(1));
+                results.close();
+                prepStmt.close();
+                if (debugging) {
+                    log.log(Level.FINER, "=> {0}", modified);
+                }
+                return modified;
+            } catch (SQLException ex) {
+                String className = getCaller().getClassName();
+                throw new ezJDOException("The call to remotelyModified() failed. Please make sure the class \"" + className + "\" implemented correctly.", ex);
+            }
+        } else if (!newRecord) {
             try {
                 String SQL = "SELECT * FROM " + getTableName() + " WHERE " + getKeyWhereClause();
                 if (debugging) {
@@ -652,6 +902,94 @@ public class BaseObject {
         return false;
     }
 
+    /**
+     * Retrieves the objects that have been modified in the database since they
+     * were retrieved.
+     *
+     * <p>For classes with a Version attribute the versions are checked in bulk
+     * with one query per chunk of keys, other classes fall back to calling
+     * remotelyModified() on each object. New objects are never modified.
+     *
+     * @param <T> generic type that extends BaseObject.
+     * @param objects the objects to check.
+     * @return the objects that were changed or removed in the database.
+     * @throws ezJDOException
+     * @see #remotelyModified()
+     */
+    public static <T extends BaseObject> List<T> remotelyModified(Collection<T> objects) throws ezJDOException {
+        if (debugging) {
+            log.log(Level.FINER, "BaseObject.remotelyModified([{0}])", objects.size());
+        }
+        ArrayList<T> modified = new ArrayList<T>();
+        LinkedHashMap<Integer, ArrayList<T>> byTable = new LinkedHashMap<Integer, ArrayList<T>>();
+        for (T object : objects) {
+            if (object.newRecord) {
+                continue;
+            }
+            if (versionPos[object.tableIndex] < 0) {
+                if (object.remotelyModified()) {
+                    modified.add(object);
+                }
+                continue;
+            }
+            ArrayList<T> group = byTable.get(object.tableIndex);
+            if (group == null) {
+                group = new ArrayList<T>();
+                byTable.put(object.tableIndex, group);
+            }
+            group.add(object);
+        }
+        for (Entry<Integer, ArrayList<T>> entry : byTable.entrySet()) {
+            int localTableIndex = entry.getKey();
+            int version = versionPos[localTableIndex];
+            ArrayList<T> group = entry.getValue();
+            for (int start = 0; start < group.size(); start += BATCH_SIZE) {
+                List<T> chunk = group.subList(start, Math.min(start + BATCH_SIZE, group.size()));
+                StringBuilder select = new StringBuilder();
+                for (String key : keys[localTableIndex]) {
+                    select.append(key).append(", ");
+                }
+                String SQL = "SELECT " + select + attributes[localTableIndex][version] + " FROM " + tables[localTableIndex] + " WHERE " + getKeyInClause(localTableIndex, chunk.size());
+                if (debugging) {
+                    log.log(Level.INFO, SQL);
+                }
+                HashMap<EntityKey, Object> versions = new HashMap<EntityKey, Object>();
+                try {
+                    PreparedStatement prepStmt = getConnection(localTableIndex, Thread.currentThread().getId()).prepareStatement(SQL);
+                    int n = 1;
+                    for (T object : chunk) {
+                        for (Object key : object.getKeyValues()) {
+                            prepStmt.setObject(n++, key);
+                        }
+                    }
+                    ResultSet results = prepStmt.executeQuery();
+                    int keyCount = keys[localTableIndex].length;
+                    while (results.next()) {
+                        Object[] keyValues = new Object[keyCount];
+                        for (int i = 0; i < keyCount; i++) {
+                            keyValues[i] = results.getObject(i + 1);
+                        }
+                        versions.put(new EntityKey(classes[localTableIndex], keyValues), results.getObject(keyCount + 1));
+                    }
+                    results.close();
+                    prepStmt.close();
+                } catch (SQLException ex) {
+                    throw new ezJDOException("The call to remotelyModified() failed. Please make sure the class \"" + classes[localTableIndex] + "\" implemented correctly.", ex);
+                }
+                for (T object : chunk) {
+                    EntityKey key = new EntityKey(classes[localTableIndex], object.getKeyValues());
+                    if (!versions.containsKey(key) || !EntityKey.sameValue(object.originalValues[version], versions.get(key))) {
+                        modified.add(object);
+                    }
+                }
+            }
+        }
+        if (debugging) {
+            log.log(Level.FINER, "=> {0} modified", modified.size());
+        }
+        return modified;
+    }
+
     /**
      * Identifies if the object is a new object or is from the database.
      *
@@ -861,20 +1199,106 @@ public class BaseObject {
         if (debugging && conditions != null && !conditions.trim().isEmpty()) {
             log.log(Level.FINER, "BaseObject<{0}>.findManyWhere({1})", new Object[]{toString(), clazz});
         }
-        String className = this.getClass().getName();
+        RelationPlan plan = getRelationPlan(tableIndex, clazz);
+        if (conditions != null && !conditions.trim().isEmpty()) {
+            Object[] newVals = new Object[values.length + 1];
+            newVals[0] = originalValues[plan.ownerKeyIndex];
+            for (int i = 1; i < newVals.length; i++) {
+                newVals[i] = values[i - 1];
+            }
+            values = newVals;
+        } else {
+            values = new Object[]{originalValues[plan.ownerKeyIndex]};
+        }
+        String sql = conditions == null || conditions.trim().isEmpty() ? plan.findSQL : plan.findSQL + " AND (" + conditions + ")";
+        return sql(clazz, sql, values);
+    }
+
+    /**
+     * Returns the "many" mapping on the keys of the owner table to the target
+     * class. The plans are resolved when both classes are registered and kept
+     * in the table cache, so navigating a relationship does not scan the
+     * mappings or build the sql again.
+     */
+    /* package */ static RelationPlan getRelationPlan(int ownerTableIndex, Class<?> clazz) throws ezJDOException {
         int baseTableIndex = getTableCacheIndex(clazz.getName());
         if (baseTableIndex < 0) {
             throw new ezJDOException("You did not pass the correct object class: \"" + clazz.getName() + "\". You must specify a class that extends \"ezjdo.com.BaseObject\".");
         }
+        RelationPlan[] plans = relationPlans[ownerTableIndex];
+        RelationPlan plan = plans != null && baseTableIndex < plans.length ? plans[baseTableIndex] : null;
+        if (plan == null) {
+            plan = resolveRelationPlan(ownerTableIndex, baseTableIndex, clazz);
+            storeRelationPlan(ownerTableIndex, plan);
+        }
+        return plan;
+    }
+
+    /**
+     * Resolves the plans between a newly registered table and the tables that
+     * are already in the cache, in both directions.
+     */
+    private static void resolveRelationPlans(int tableIndex) {
+        for (int owner = 0; owner < tables.length; owner++) {
+            if (tables[owner] == null || mappings[owner] == null || keyPos[owner] == null) {
+                continue;
+            }
+            for (Integer pos : keyPos[owner]) {
+                if (mappings[owner][pos] == null) {
+                    continue;
+                }
+                for (Many mapping : mappings[owner][pos]) {
+                    int target = -1;
+                    for (int i = 0; i < classes.length; i++) {
+                        if (mapping.object().getName().equals(classes[i])) {
+                            target = i;
+                            break;
+                        }
+                    }
+                    if (target < 0 || (owner != tableIndex && target != tableIndex)) {
+                        continue;
+                    }
+                    try {
+                        storeRelationPlan(owner, resolveRelationPlan(owner, target, mapping.object()));
+                    } catch (ezJDOException ex) {
+                        // it will fail again on first use with the message
+                    }
+                }
+            }
+        }
+    }
+
+    private static void storeRelationPlan(int ownerTableIndex, RelationPlan plan) {
+        synchronized (tables) {
+            RelationPlan[] plans = relationPlans[ownerTableIndex];
+            if (plans == null || plans.length <= plan.targetTableIndex) {
+                RelationPlan[] temp = new RelationPlan[tables.length];
+                if (plans != null) {
+                    System.arraycopy(plans, 0, temp, 0, plans.length);
+                }
+                plans = temp;
+            }
+            plans[plan.targetTableIndex] = plan;
+            relationPlans[ownerTableIndex] = plans;
+        }
+    }
+
+    private static RelationPlan resolveRelationPlan(int ownerTableIndex, int baseTableIndex, Class<?> clazz) throws ezJDOException {
+        String className = classes[ownerTableIndex];
         String baseTableName = tables[baseTableIndex];
         Many mapping = null;
         int index = 0;
+        int keyNumber = 0;
         found:
-        for (int i = 0; i < keyPos[tableIndex].length; i++) {
-            for (int n = 0; n < mappings[tableIndex][keyPos[tableIndex][i]].length; n++) {
-                if (clazz == mappings[tableIndex][keyPos[tableIndex][i]][n].object()) {
-                    mapping = mappings[tableIndex][keyPos[tableIndex][i]][n];
-                    index = keyPos[tableIndex][i];
+        for (int i = 0; i < keyPos[ownerTableIndex].length; i++) {
+            if (mappings[ownerTableIndex][keyPos[ownerTableIndex][i]] == null) {
+                continue;
+            }
+            for (int n = 0; n < mappings[ownerTableIndex][keyPos[ownerTableIndex][i]].length; n++) {
+                if (clazz == mappings[ownerTableIndex][keyPos[ownerTableIndex][i]][n].object()) {
+                    mapping = mappings[ownerTableIndex][keyPos[ownerTableIndex][i]][n];
+                    index = keyPos[ownerTableIndex][i];
+                    keyNumber = i;
                     break found;
                 }
             }
@@ -882,140 +1306,446 @@ public class BaseObject {
         if (mapping == null) {
             throw new ezJDOException("You cannot call findManyWhere(" + clazz.getName() + ") from \"" + className + "\" because it has no mappings to \"" + className + "\" on its ids.");
         }
-        if (conditions != null && !conditions.trim().isEmpty()) {
-            Object[] newVals = new Object[values.length + 1];
-            newVals[0] = originalValues[index];
-            for (int i = 1; i < newVals.length; i++) {
-                newVals[i] = values[i - 1];
-            }
-            values = newVals;
-        } else {
-            values = new Object[]{originalValues[index]};
-        }
         String foreignColumn = mapping.column();
         if (foreignColumn.isEmpty()) {
             foreignColumn = className.substring(className.lastIndexOf(".") + 1).toLowerCase() + "Id";
         }
+        String ownerTableName = tables[ownerTableIndex];
         String joinTable = mapping.joinTable();
-        String joinString = "";
         if (joinTable.isEmpty()) {
             // if no join table is specified make sure that the base object has the foreignColumn
             int foreignIndex = getIndexForAttribute(baseTableIndex, foreignColumn);
             if (foreignIndex < 0) {
                 // he base object does not have the foreignColumn, so assume a join table from the 2 objects tables
-                if (baseTableName.compareTo(getTableName()) < 0) {
-                    joinTable = baseTableName + getTableName();
+                if (baseTableName.compareTo(ownerTableName) < 0) {
+                    joinTable = baseTableName + ownerTableName;
                 } else {
-                    joinTable = getTableName() + baseTableName;
+                    joinTable = ownerTableName + baseTableName;
                 }
             }
         }
-        if (!joinTable.isEmpty()) {
-            String joinColumn = mapping.joinColumn();
-            if (joinColumn.isEmpty()) {
-                String baseClassName = clazz.getName();
-                joinColumn = baseClassName.substring(baseClassName.lastIndexOf(".") + 1).toLowerCase() + "Id";
-            }
-            joinString = " JOIN " + joinTable + " T2 ON T1." + attributes[baseTableIndex][index] + " = T2." + joinColumn + "";
+        String joinColumn = mapping.joinColumn();
+        if (!joinTable.isEmpty() && joinColumn.isEmpty()) {
+            String baseClassName = clazz.getName();
+            joinColumn = baseClassName.substring(baseClassName.lastIndexOf(".") + 1).toLowerCase() + "Id";
         }
-
-        String sql = "SELECT T1.* FROM " + baseTableName + " T1" + (joinString.isEmpty() ? "" : joinString) + " WHERE " + foreignColumn + " = ?" + (conditions == null || conditions.trim().isEmpty() ? "" : " AND (" + conditions + ")");
-        return sql(clazz, sql, values);
+        // the target key in the same place as the mapped owner key
+        String[] targetKeys = keys[baseTableIndex];
+        String targetKey = targetKeys.length > 0 ? targetKeys[Math.min(keyNumber, targetKeys.length - 1)] : attributes[baseTableIndex][index];
+        return new RelationPlan(index, baseTableIndex, baseTableName, targetKey, foreignColumn, joinTable, joinColumn);
     }
 
     /**
-     * Finds a object in the database from its keys.
+     * Loads the "many" objects of the class for every parent at once, one
+     * query for each chunk of parent keys instead of one findMany() for each
+     * parent.
      *
      * <p>This function is protected for internal use, so when it is exposed
      * publicly from inside of an <b>extending</b> class it can be wrapped in
      * order to simplify its use. For example:</p> <blockquote><pre>
-     * public class Document extends BaseObject {
+     * public class DocType extends BaseObject {
      *
-     *     // wrapper for find
-     *     public static Document find(Integer id) throws ezJDOException {
-     *         return find(Document.class, id);
-     *     }
+     *     &#064Many(object=Document.class,column="typeId") //   And Many Docuemnts
+     *     private Integer id;                         // &lt;-- on primary id
      *
-     *     // relational function
-     *     public DocType DocType() throws ezJDOException {
-     *         return find(DocType.class, typeId);
-     *         // typeId is an internal attribute for connecting the data relationship
+     *     public static IdentityHashMap&lt;DocType, ResultList&lt;Document&gt;&gt; Documents(Collection&lt;DocType&gt; types) throws ezJDOException {
+     *         return loadMany(types, Document.class); // mapped above
      *     }
      * }
      * </pre></blockquote>
      *
-     * @param <T> generic type that you want to return.
-     * @param clazz the class for the object you want the results stored in.
-     * @param keys the key values that identify the object in the database.
-     * @return the database object found or a new object. If the search does not
-     * find a object in the database it just returns a new object.
+     * @param <P> the parent type.
+     * @param <C> the type of the many objects.
+     * @param parents the objects that own the mapping.
+     * @param clazz the class of the many objects.
+     * @return the many objects of every parent, parents without any get an
+     * empty list.
      * @throws ezJDOException
      */
-    protected static <T> T find(Class<T> clazz, Object... keys) throws ezJDOException {
+    protected static <P extends BaseObject, C extends BaseObject> IdentityHashMap<P, ResultList<C>> loadMany(Collection<P> parents, Class<C> clazz) throws ezJDOException {
         if (debugging) {
-            log.log(Level.FINER, "BaseObject.find({0},[{1}])", new Object[]{clazz, join(keys, ",")});
-        }
-        String className = clazz.getName();
-        int baseTableIndex = getTableCacheIndex(clazz.getName());
-        if (baseTableIndex < 0) {
-            throw new ezJDOException("You did not pass the correct object class: \"" + className + "\". You must specify a class that extends \"ezjdo.com.BaseObject\".");
+            log.log(Level.FINER, "BaseObject.loadMany({0},{1})", new Object[]{parents.size(), clazz});
+        }
+        IdentityHashMap<P, ResultList<C>> loaded = new IdentityHashMap<P, ResultList<C>>();
+        // the parents can be of different classes, resolve the mapping for each table
+        LinkedHashMap<Integer, ArrayList<P>> tableParents = new LinkedHashMap<Integer, ArrayList<P>>();
+        for (P parent : parents) {
+            ArrayList<P> list = tableParents.get(parent.tableIndex);
+            if (list == null) {
+                list = new ArrayList<P>();
+                tableParents.put(parent.tableIndex, list);
+            }
+            list.add(parent);
+        }
+        for (Entry<Integer, ArrayList<P>> entry : tableParents.entrySet()) {
+            RelationPlan plan = getRelationPlan(entry.getKey(), clazz);
+            // the parent key values are keyed by the parent class on both sides
+            String parentClassName = classes[entry.getKey()];
+            LinkedHashMap<EntityKey, Object> parentKeys = new LinkedHashMap<EntityKey, Object>();
+            for (P parent : entry.getValue()) {
+                Object value = parent.originalValues[plan.ownerKeyIndex];
+                if (value != null) {
+                    parentKeys.put(new EntityKey(parentClassName, value), value);
+                }
+            }
+            HashMap<EntityKey, ArrayList<C>> children = loadChildren(plan, clazz, parentClassName, new ArrayList<Object>(parentKeys.values()));
+            for (P parent : entry.getValue()) {
+                ResultList<C> list = new ResultList<C>();
+                Object value = parent.originalValues[plan.ownerKeyIndex];
+                ArrayList<C> found = value == null ? null : children.get(new EntityKey(parentClassName, value));
+                if (found != null) {
+                    list.addAll(found);
+                }
+                parent.putMany(clazz, list);
+                loaded.put(parent, list);
+            }
         }
-        String baseTableName = tables[baseTableIndex];
-        String sql = "SELECT * FROM " + baseTableName + " WHERE " + getKeyWhereClause(baseTableIndex);
-        return sqlFirst(clazz, sql, keys);
+        return loaded;
     }
 
     /**
-     * Finds a object in the database from example.
+     * Finds objects in the database from a SQL where clause together with
+     * their "many" objects, in one query. The parent rows are read once for
+     * each of their many objects and joined back into one object while the
+     * result set is read, the many objects are then returned by getMany()
+     * without a query.
+     *
+     * <p>The parent table has the alias P and the many table the alias T1, so
+     * columns in the conditions that both tables have must use the alias.</p>
      *
      * <p>This function is protected for internal use, so when it is exposed
      * publicly from inside of an <b>extending</b> class it can be wrapped in
      * order to simplify its use. For example:</p> <blockquote><pre>
-     * public class Document extends BaseObject {
+     * public class DocType extends BaseObject {
      *
-     *     // wrapper for find
-     *     public static Results&lt;Document&gt; find(Document example) throws ezJDOException {
-     *         return find(Document.class, example);
+     *     &#064Many(object=Document.class,column="typeId") //   And Many Docuemnts
+     *     private Integer id;                         // &lt;-- on primary id
+     *
+     *     public static ResultList&lt;DocType&gt; findWithDocuments(String name) throws ezJDOException {
+     *         return findWhereFetchMany(DocType.class, Document.class, "P.name = ?", name);
+     *     }
+     *
+     *     public ResultList&lt;Document&gt; Documents() throws ezJDOException {
+     *         return getMany(Document.class); // loaded by findWithDocuments
      *     }
      * }
      * </pre></blockquote>
      *
-     * @param <T> generic type that you want to return.
-     * @param clazz the class for the object you want the results stored in.
-     * @param example the example object you will use for searching.
-     * @return a collection of database objects. If the search does not find any
-     * objects in the database the array list will be empty.
+     * @param <P> the parent type.
+     * @param <C> the type of the many objects.
+     * @param clazz the class of the parent objects.
+     * @param childClass the class of the many objects.
+     * @param conditions the SQL where clause conditions string.
+     * @return the parent objects in the order of their keys.
      * @throws ezJDOException
      */
-    protected static <T> Results<T> find(Class<T> clazz, T example) throws ezJDOException {
+    protected static <P extends BaseObject, C extends BaseObject> ResultList<P> findWhereFetchMany(Class<P> clazz, Class<C> childClass, String conditions, Object... values) throws ezJDOException {
         if (debugging) {
-            log.log(Level.FINER, "BaseObject.find({0},[{1}])", new Object[]{clazz, example});
+            log.log(Level.FINER, "BaseObject.findWhereFetchMany({0},{1})", new Object[]{clazz, childClass});
         }
         String className = clazz.getName();
         int baseTableIndex = getTableCacheIndex(className);
         if (baseTableIndex < 0) {
             throw new ezJDOException("You did not pass the correct object class: \"" + className + "\". You must specify a class that extends \"ezjdo.com.BaseObject\".");
         }
-        StringBuilder sql = new StringBuilder();
-        ArrayList<Object> values = new ArrayList<Object>();
+        RelationPlan plan = getRelationPlan(baseTableIndex, childClass);
+        String[] parentColumns = attributes[baseTableIndex];
+        String[] childColumns = attributes[plan.targetTableIndex];
+        StringBuilder sql = new StringBuilder("SELECT ");
+        for (int i = 0; i < parentColumns.length; i++) {
+            sql.append(i > 0 ? ", P." : "P.").append(parentColumns[i]);
+        }
+        for (int i = 0; i < childColumns.length; i++) {
+            sql.append(", T1.").append(childColumns[i]);
+        }
+        sql.append(" FROM ").append(tables[baseTableIndex]).append(" P").append(plan.getFetchJoin(parentColumns[plan.ownerKeyIndex]));
+        if (conditions != null && !conditions.trim().isEmpty()) {
+            sql.append(" WHERE ").append(conditions);
+        }
+        sql.append(" ORDER BY ");
+        for (int i = 0; i < keys[baseTableIndex].length; i++) {
+            sql.append(i > 0 ? ", P." : "P.").append(keys[baseTableIndex][i]);
+        }
+        LinkedHashMap<EntityKey, P> parents = new LinkedHashMap<EntityKey, P>();
         try {
-            for (int i = 0; i < attributes[baseTableIndex].length; i++) {
-                Object v = ((BaseObject) example).fields[i].get(example);
-                if (v != null) {
-                    if (values.size() > 0) {
-                        sql.append(" AND ");
+            PreparedStatement prepStmt = getConnection(baseTableIndex, Thread.currentThread().getId()).prepareStatement(sql.toString());
+            for (int i = 0; i < values.length; i++) {
+                prepStmt.setObject(i + 1, values[i]);
+                if (debugging) {
+                    log.log(Level.FINEST, "  * param: {0}", String.valueOf(values[i]));
+                }
+            }
+            if (debugging) {
+                log.log(Level.INFO, sql.toString());
+            }
+            ResultSet results = prepStmt.executeQuery();
+            Integer[] parentKeyPos = keyPos[baseTableIndex];
+            Integer[] childKeyPos = keyPos[plan.targetTableIndex];
+            Object[] parentKeys = new Object[parentKeyPos.length];
+            while (results.next()) {
+                for (int i = 0; i < parentKeyPos.length; i++) {
+                    parentKeys[i] = results.getObject(parentKeyPos[i] + 1);
+                }
+                EntityKey parentKey = new EntityKey(className, parentKeys);
+                P parent = parents.get(parentKey);
+                if (parent == null) {
+                    Object[] parentValues = new Object[parentColumns.length];
+                    for (int i = 0; i < parentValues.length; i++) {
+                        parentValues[i] = results.getObject(i + 1);
                     }
-                    sql.append(attributes[baseTableIndex][i]).append(" = ?");
-                    values.add(v);
+                    parent = hydrate(clazz, parentValues);
+                    parent.putMany(childClass, new ResultList<C>());
+                    parents.put(parentKey, parent);
+                }
+                // a parent without any many objects has a row of nulls
+                boolean found = childKeyPos.length == 0;
+                for (int i = 0; i < childKeyPos.length && !found; i++) {
+                    found = results.getObject(parentColumns.length + childKeyPos[i] + 1) != null;
+                }
+                if (found) {
+                    Object[] childValues = new Object[childColumns.length];
+                    for (int i = 0; i < childValues.length; i++) {
+                        childValues[i] = results.getObject(parentColumns.length + i + 1);
+                    }
+                    parent.getFetchedMany(childClass).add(hydrate(childClass, childValues));
                 }
             }
-        } catch (IllegalArgumentException ex) {
-            throw new ezJDOException("You did not pass the correct object class: \"" + className + "\". You must specify a class that extends \"ezjdo.com.BaseObject\".");
-        } catch (IllegalAccessException ex) {
-            throw new ezJDOException("You did not pass the correct object class: \"" + className + "\". You must specify a class that extends \"ezjdo.com.BaseObject\".");
-        }
-        return findWhere(clazz, sql.toString(), values.toArray());
-    }
+            results.close();
+            prepStmt.close();
+        } catch (SQLException ex) {
+            throw new ezJDOException("The conditions for the method are not in correct SQL syntax, or you are not passing the correct BaseObject class", ex);
+        }
+        ResultList<P> list = new ResultList<P>();
+        list.addAll(parents.values());
+        return list;
+    }
+
+    /**
+     * Returns the "many" objects of the class that were loaded with this
+     * object by findWhereFetchMany() or loadMany(), or finds and keeps them
+     * when they were not.
+     *
+     * @param <T> generic type that extends BaseObject.
+     * @param clazz the class of the many objects.
+     * @return the many objects, it can be empty.
+     * @throws ezJDOException
+     * @see #findMany(Class)
+     */
+    protected <T extends BaseObject> ResultList<T> getMany(Class<T> clazz) throws ezJDOException {
+        ResultList<T> list = getFetchedMany(clazz);
+        if (list == null) {
+            list = findManyWhere(clazz, "").list();
+            list.load();
+            putMany(clazz, list);
+        }
+        return list;
+    }
+
+    /**
+     * Returns the "many" objects of the class without finding them, they are
+     * found the first time the list is used. Use ManyRelation.loadAll() to
+     * load the holders of many objects together.
+     *
+     * <p>This function is protected for internal use, so when it is exposed
+     * publicly from inside of an <b>extending</b> class it can be wrapped in
+     * order to simplify its use. For example:</p> <blockquote><pre>
+     * public class DocType extends BaseObject {
+     *
+     *     &#064Many(object=Document.class,column="typeId") //   And Many Docuemnts
+     *     private Integer id;                         // &lt;-- on primary id
+     *
+     *     public ManyRelation&lt;Document&gt; Documents() {
+     *         return many(Document.class); // mapped above
+     *     }
+     * }
+     * </pre></blockquote>
+     *
+     * @param <T> generic type that extends BaseObject.
+     * @param clazz the class of the many objects.
+     * @return the holder of the many objects.
+     * @see #getMany(Class)
+     */
+    protected <T extends BaseObject> ManyRelation<T> many(Class<T> clazz) {
+        return new ManyRelation<T>(this, clazz);
+    }
+
+    @SuppressWarnings("unchecked")
+    /* package */ <T> ResultList<T> getFetchedMany(Class<T> clazz) {
+        return relations == null ? null : (ResultList<T>) relations.get(clazz);
+    }
+
+    /* package */ void putMany(Class<?> clazz, ResultList<?> list) {
+        if (relations == null) {
+            relations = new HashMap<Class<?>, ResultList<?>>();
+        }
+        relations.put(clazz, list);
+    }
+
+    /**
+     * Reads the objects of a relationship for many parent key values, grouped
+     * by the key of the parent class they belong to.
+     */
+    private static <C> HashMap<EntityKey, ArrayList<C>> loadChildren(RelationPlan plan, Class<C> clazz, String parentClassName, List<Object> parentValues) throws ezJDOException {
+        HashMap<EntityKey, ArrayList<C>> children = new HashMap<EntityKey, ArrayList<C>>();
+        for (int start = 0; start < parentValues.size(); start += BATCH_SIZE) {
+            List<Object> chunk = parentValues.subList(start, Math.min(parentValues.size(), start + BATCH_SIZE));
+            StringBuilder sql = new StringBuilder(plan.loadSQL).append(" IN (");
+            for (int i = 0; i < chunk.size(); i++) {
+                sql.append(i > 0 ? ", ?" : "?");
+            }
+            sql.append(")");
+            try {
+                PreparedStatement prepStmt = getConnection(plan.targetTableIndex, Thread.currentThread().getId()).prepareStatement(sql.toString());
+                int n = 1;
+                for (Object value : chunk) {
+                    prepStmt.setObject(n++, value);
+                    if (debugging) {
+                        log.log(Level.FINEST, "  * param: {0}", String.valueOf(value));
+                    }
+                }
+                if (debugging) {
+                    log.log(Level.INFO, sql.toString());
+                }
+                ResultSet results = prepStmt.executeQuery();
+                RowMapper mapper = null;
+                while (results.next()) {
+                    if (mapper == null) {
+                        mapper = getRowMapper(clazz, results);
+                    }
+                    C child = construct(clazz, results, mapper);
+                    EntityKey parentKey = new EntityKey(parentClassName, results.getObject(RelationPlan.PARENT_COLUMN));
+                    ArrayList<C> list = children.get(parentKey);
+                    if (list == null) {
+                        list = new ArrayList<C>();
+                        children.put(parentKey, list);
+                    }
+                    list.add(child);
+                }
+                results.close();
+                prepStmt.close();
+            } catch (SQLException ex) {
+                throw new ezJDOException("The conditions for the method are not in correct SQL syntax, or you are not passing the correct BaseObject class", ex);
+            }
+        }
+        return children;
+    }
+
+    /**
+     * Finds a object in the database from its keys.
+     *
+     * <p>This function is protected for internal use, so when it is exposed
+     * publicly from inside of an <b>extending</b> class it can be wrapped in
+     * order to simplify its use. For example:</p> <blockquote><pre>
+     * public class Document extends BaseObject {
+     *
+     *     // wrapper for find
+     *     public static Document find(Integer id) throws ezJDOException {
+     *         return find(Document.class, id);
+     *     }
+     *
+     *     // relational function
+     *     public DocType DocType() throws ezJDOException {
+     *         return find(DocType.class, typeId);
+     *         // typeId is an internal attribute for connecting the data relationship
+     *     }
+     * }
+     * </pre></blockquote>
+     *
+     * @param <T> generic type that you want to return.
+     * @param clazz the class for the object you want the results stored in.
+     * @param keys the key values that identify the object in the database.
+     * @return the database object found or a new object. If the search does not
+     * find a object in the database it just returns a new object.
+     * @throws ezJDOException
+     */
+    protected static <T> T find(Class<T> clazz, Object... keys) throws ezJDOException {
+        if (debugging) {
+            log.log(Level.FINER, "BaseObject.find({0},[{1}])", new Object[]{clazz, join(keys, ",")});
+        }
+        String className = clazz.getName();
+        int baseTableIndex = getTableCacheIndex(clazz.getName());
+        if (baseTableIndex < 0) {
+            throw new ezJDOException("You did not pass the correct object class: \"" + className + "\". You must specify a class that extends \"ezjdo.com.BaseObject\".");
+        }
+        Session session = Session.current();
+        EntityCache cache = entityCaches[baseTableIndex];
+        EntityKey key = session == null && cache == null ? null : new EntityKey(className, keys);
+        if (session != null) {
+            BaseObject existing = session.get(key);
+            if (existing != null) {
+                return clazz.cast(existing);
+            }
+        }
+        T found = null;
+        Object[] cachedValues = cache == null ? null : cache.get(key);
+        if (cachedValues != null) {
+            found = hydrate(clazz, cachedValues);
+        } else {
+            String baseTableName = tables[baseTableIndex];
+            String sql = "SELECT * FROM " + baseTableName + " WHERE " + getKeyWhereClause(baseTableIndex);
+            long generation = cache == null ? 0 : cache.getGeneration(); // before the read, so a write during it is not cached
+            found = sqlFirst(clazz, sql, keys);
+            if (cache != null && found instanceof BaseObject && !((BaseObject) found).newRecord) {
+                cache.put(Session.keyOf((BaseObject) found), ((BaseObject) found).snapshot(), generation);
+            }
+        }
+        if (session != null && found instanceof BaseObject) {
+            return clazz.cast(session.put((BaseObject) found));
+        }
+        return found;
+    }
+
+    /**
+     * Finds a object in the database from example.
+     *
+     * <p>This function is protected for internal use, so when it is exposed
+     * publicly from inside of an <b>extending</b> class it can be wrapped in
+     * order to simplify its use. For example:</p> <blockquote><pre>
+     * public class Document extends BaseObject {
+     *
+     *     // wrapper for find
+     *     public static Results&lt;Document&gt; find(Document example) throws ezJDOException {
+     *         return find(Document.class, example);
+     *     }
+     * }
+     * </pre></blockquote>
+     *
+     * @param <T> generic type that you want to return.
+     * @param clazz the class for the object you want the results stored in.
+     * @param example the example object you will use for searching.
+     * @return a collection of database objects. If the search does not find any
+     * objects in the database the array list will be empty.
+     * @throws ezJDOException
+     */
+    protected static <T> Results<T> find(Class<T> clazz, T example) throws ezJDOException {
+        if (debugging) {
+            log.log(Level.FINER, "BaseObject.find({0},[{1}])", new Object[]{clazz, example});
+        }
+        String className = clazz.getName();
+        int baseTableIndex = getTableCacheIndex(className);
+        if (baseTableIndex < 0) {
+            throw new ezJDOException("You did not pass the correct object class: \"" + className + "\". You must specify a class that extends \"ezjdo.com.BaseObject\".");
+        }
+        StringBuilder sql = new StringBuilder();
+        ArrayList<Object> values = new ArrayList<Object>();
+        try {
+            for (int i = 0; i < attributes[baseTableIndex].length; i++) {
+                Object v = ((BaseObject) example).fields[i].get(example);
+                if (v != null) {
+                    if (values.size() > 0) {
+                        sql.append(" AND ");
+                    }
+                    sql.append(attributes[baseTableIndex][i]).append(" = ?");
+                    values.add(v);
+                }
+            }
+        } catch (IllegalArgumentException ex) {
+            throw new ezJDOException("You did not pass the correct object class: \"" + className + "\". You must specify a class that extends \"ezjdo.com.BaseObject\".");
+        } catch (IllegalAccessException ex) {
+            throw new ezJDOException("You did not pass the correct object class: \"" + className + "\". You must specify a class that extends \"ezjdo.com.BaseObject\".");
+        }
+        return findWhere(clazz, sql.toString(), values.toArray());
+    }
 
     /**
      * Finds objects in the database from a SQL where clause.
@@ -1133,7 +1863,21 @@ public class BaseObject {
         }
         String baseTableName = tables[baseTableIndex];
         String sql = "SELECT * FROM " + baseTableName + "" + (conditions == null || conditions.trim().isEmpty() ? "" : " WHERE " + conditions);
-        return sqlFirst(clazz, sql, values);
+        EntityCache cache = entityCaches[baseTableIndex];
+        if (cache == null) {
+            return sqlFirst(clazz, sql, values);
+        }
+        String query = sql + '\u0000' + new EntityKey(className, values).getCanonical();
+        Object[] cachedValues = cache.lookup(query);
+        if (cachedValues != null) {
+            return hydrate(clazz, cachedValues);
+        }
+        long generation = cache.getGeneration(); // before the read, so a write during it is not cached
+        T found = sqlFirst(clazz, sql, values);
+        if (found instanceof BaseObject && !((BaseObject) found).newRecord) {
+            cache.put(query, Session.keyOf((BaseObject) found), ((BaseObject) found).snapshot(), generation);
+        }
+        return found;
     }
 
     /**
@@ -1205,14 +1949,21 @@ public class BaseObject {
         if (debugging) {
             log.log(Level.FINEST, "BaseObject.sql({0})", clazz);
         }
+        String className;
+        if (clazz != null && BaseObject.class.isAssignableFrom(clazz)) {
+            className = clazz.getName();
+        } else {
+            className = getCaller().getClassName();
+        }
+        return selectResults(className, clazz, sql, values);
+    }
+
+    /**
+     * The body of sql() for a caller class that is already known.
+     */
+    private static <T> Results<T> selectResults(String className, Class<T> clazz, String sql, Object... values) throws ezJDOException {
         Results<T> found;
         try {
-            String className;
-            if (clazz != null && BaseObject.class.isAssignableFrom(clazz)) {
-                className = clazz.getName();
-            } else {
-                className = getCaller().getClassName();
-            }
             int baseTableIndex = getTableCacheIndex(className);
             if (baseTableIndex < 0) {
                 throw new ezJDOException("You did not pass the correct object class: \"" + className + "\". You must specify a class that extends \"ezjdo.com.BaseObject\".");
@@ -1232,6 +1983,12 @@ public class BaseObject {
                 prepStmt.setObject(i++, value);
             }
             found = new Results<T>(clazz, prepStmt, sql, values);
+            found.sourceTableIndex = baseTableIndex;
+            if (clazz == null) {
+                invalidateWrites(sql); // ran in the constructor
+            } else {
+                found.invalidatesWrites = true; // runs on the first iterator, which invalidates if it wrote
+            }
         } catch (SecurityException ex) {
             throw new ezJDOException("The conditions for the method are not in correct SQL syntax, or you are not passing the correct BaseObject class", ex);
         } catch (IllegalArgumentException ex) {
@@ -1331,6 +2088,194 @@ public class BaseObject {
         }
     }
 
+    /**
+     * Finds a object in the database by its keys without blocking the calling
+     * thread, see find(Class, Object...).
+     *
+     * <p>The query runs on the async threads with their own connections, so
+     * it is not part of a transaction on the calling thread.</p>
+     *
+     * @param <T> generic type that you want to return.
+     * @param clazz the class for the object you want the results stored in.
+     * @param keys the key values that identify the object in the database.
+     * @return a future for the database object found or a new object.
+     */
+    protected static <T> CompletableFuture<T> findAsync(final Class<T> clazz, final Object... keys) {
+        return supplyAsync(new Supplier<T>() {
+            @Override
+            public T get() {
+                try {
+                    return find(clazz, keys);
+                } catch (ezJDOException ex) {
+                    throw new CompletionException(ex);
+                }
+            }
+        });
+    }
+
+    /**
+     * Finds objects in the database from a SQL where clause without blocking
+     * the calling thread, see findWhere(Class, String, Object...).
+     *
+     * @param <T> generic type that you want to return.
+     * @param clazz the class for the object you want the results stored in.
+     * @param conditions the SQL where clause conditions string.
+     * @param values an array of values that replace the ? in the conditions.
+     * @return a future for the list of every object found.
+     */
+    protected static <T> CompletableFuture<ResultList<T>> findWhereAsync(final Class<T> clazz, final String conditions, final Object... values) {
+        return supplyAsync(new Supplier<ResultList<T>>() {
+            @Override
+            public ResultList<T> get() {
+                try {
+                    return findWhere(clazz, conditions, values).list().load();
+                } catch (ezJDOException ex) {
+                    throw new CompletionException(ex);
+                }
+            }
+        });
+    }
+
+    /**
+     * Warning this is an advanced function that should be used carefully. Most
+     * of the time you should be able to use your find methods to get the data
+     * you need.
+     *
+     * <p>this functions will issue a select statement on the async threads and
+     * map the values back to a list of objects from the type passed, see
+     * sql(Class, String, Object...).</p>
+     *
+     * @param <T> generic type that you want to return.
+     * @param clazz the class for the object you want the results stored in.
+     * @param sql the SQL statement string.
+     * @param values an array of values that replace the ? in the SQL statement.
+     * @return a future for the list of every row.
+     */
+    protected static <T> CompletableFuture<ResultList<T>> sqlAsync(final Class<T> clazz, final String sql, final Object... values) {
+        // the caller is only known on the calling thread
+        final String className = clazz != null && BaseObject.class.isAssignableFrom(clazz) ? clazz.getName() : getCaller().getClassName();
+        return supplyAsync(new Supplier<ResultList<T>>() {
+            @Override
+            public ResultList<T> get() {
+                try {
+                    return selectResults(className, clazz, sql, values).list().load();
+                } catch (ezJDOException ex) {
+                    throw new CompletionException(ex);
+                }
+            }
+        });
+    }
+
+    /**
+     * Warning this is an advanced function that should be used carefully. Most
+     * of the time you should be able to use your find methods to get the data
+     * you need.
+     *
+     * <p>this functions will issue a select statement and read the first
+     * column of every row into an int array without boxing the values. A null
+     * is read as 0.</p>
+     *
+     * @param sql the SQL statement string.
+     * @param values an array of values that replace the ? in the SQL statement.
+     * @return the values of the first column.
+     * @throws ezJDOException
+     */
+    protected static int[] sqlInts(String sql, Object... values) throws ezJDOException {
+        return selectColumns(getCaller().getClassName(), ColumnarResults.INT, sql, values).getInts(0);
+    }
+
+    /**
+     * Warning this is an advanced function that should be used carefully. Most
+     * of the time you should be able to use your find methods to get the data
+     * you need.
+     *
+     * <p>this functions will issue a select statement and read the first
+     * column of every row into a long array without boxing the values. A null
+     * is read as 0.</p>
+     *
+     * @param sql the SQL statement string.
+     * @param values an array of values that replace the ? in the SQL statement.
+     * @return the values of the first column.
+     * @throws ezJDOException
+     */
+    protected static long[] sqlLongs(String sql, Object... values) throws ezJDOException {
+        return selectColumns(getCaller().getClassName(), ColumnarResults.LONG, sql, values).getLongs(0);
+    }
+
+    /**
+     * Warning this is an advanced function that should be used carefully. Most
+     * of the time you should be able to use your find methods to get the data
+     * you need.
+     *
+     * <p>this functions will issue a select statement and read the first
+     * column of every row into a double array without boxing the values. A
+     * null is read as 0.</p>
+     *
+     * @param sql the SQL statement string.
+     * @param values an array of values that replace the ? in the SQL statement.
+     * @return the values of the first column.
+     * @throws ezJDOException
+     */
+    protected static double[] sqlDoubles(String sql, Object... values) throws ezJDOException {
+        return selectColumns(getCaller().getClassName(), ColumnarResults.DOUBLE, sql, values).getDoubles(0);
+    }
+
+    /**
+     * Warning this is an advanced function that should be used carefully. Most
+     * of the time you should be able to use your find methods to get the data
+     * you need.
+     *
+     * <p>this functions will issue a select statement and read the rows column
+     * by column, numeric columns into primitive arrays.</p>
+     *
+     * @param sql the SQL statement string.
+     * @param values an array of values that replace the ? in the SQL statement.
+     * @return the columns of the rows.
+     * @throws ezJDOException
+     */
+    protected static ColumnarResults sqlColumns(String sql, Object... values) throws ezJDOException {
+        return selectColumns(getCaller().getClassName(), ColumnarResults.AUTO, sql, values);
+    }
+
+    private static ColumnarResults selectColumns(String className, int kind, String sql, Object... values) throws ezJDOException {
+        if (debugging) {
+            log.log(Level.FINEST, "BaseObject.selectColumns({0})", className);
+        }
+        int baseTableIndex = getTableCacheIndex(className);
+        if (baseTableIndex < 0) {
+            throw new ezJDOException("You did not pass the correct object class: \"" + className + "\". You must specify a class that extends \"ezjdo.com.BaseObject\".");
+        }
+        try {
+            PreparedStatement prepStmt = getConnection(baseTableIndex, Thread.currentThread().getId()).prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            int n = 1;
+            for (Object value : values) {
+                prepStmt.setObject(n++, value);
+                if (debugging) {
+                    log.log(Level.FINEST, "  * param: {0}", String.valueOf(value));
+                }
+            }
+            // the rows are read straight into the arrays, so let the driver stream them
+            try {
+                getSQLQueryHelper(baseTableIndex).configureStreaming(prepStmt, BATCH_SIZE);
+            } catch (ezJDOException ex) {
+                prepStmt.setFetchSize(BATCH_SIZE);
+            }
+            if (debugging) {
+                log.log(Level.INFO, sql);
+            }
+            ResultSet results = prepStmt.executeQuery();
+            ColumnarResults columns = ColumnarResults.read(results, kind);
+            results.close();
+            prepStmt.close();
+            if (debugging) {
+                log.log(Level.FINEST, "=> {0} rows", columns.size());
+            }
+            return columns;
+        } catch (SQLException ex) {
+            throw new ezJDOException("The conditions for the method are not in correct SQL syntax, or you are not passing the correct BaseObject class", ex);
+        }
+    }
+
     /**
      * Warning this is an advanced function that should be used carefully. Most
      * of the time you should be able to use your find methods to get the data
@@ -1370,6 +2315,12 @@ public class BaseObject {
                 }
             }
             found = new Results<T>(clazz, callStmt);
+            if (clazz == null) {
+                invalidateWrites(null); // ran in the constructor, the procedure can write to any table
+            } else {
+                found.invalidatesWrites = true; // runs on the first iterator
+            }
+            found.sourceTableIndex = baseTableIndex;
         } catch (SecurityException ex) {
             throw new ezJDOException("The conditions for the method are not in correct SQL syntax, or you are not passing the correct BaseObject class", ex);
         } catch (IllegalArgumentException ex) {
@@ -1380,6 +2331,45 @@ public class BaseObject {
         return found;
     }
 
+    /**
+     * Warning this is an advanced function that should be used carefully. Most
+     * of the time you should be able to use your find methods to get the data
+     * you need.
+     *
+     * <p>this functions will issue a stored procedure exec that returns several
+     * result sets, each result set can be read as its own Results of its own
+     * class, see MultiResults. The procedure runs when the first result set
+     * is asked for.</p>
+     *
+     * @param sql the stored procedure and its parameters, like exec().
+     * @param values an array of values that replace the ? in the SQL statement.
+     * @return the result sets of the procedure, close it when done.
+     * @throws ezJDOException
+     */
+    protected static MultiResults execAll(String sql, Object... values) throws ezJDOException {
+        if (debugging) {
+            log.log(Level.FINEST, "BaseObject.execAll({0})", sql);
+        }
+        String className = getCaller().getClassName();
+        int baseTableIndex = getTableCacheIndex(className);
+        if (baseTableIndex < 0) {
+            throw new ezJDOException("You did not pass the correct object class: \"" + className + "\". You must specify a class that extends \"ezjdo.com.BaseObject\".");
+        }
+        try {
+            CallableStatement callStmt = getConnection(baseTableIndex, Thread.currentThread().getId()).prepareCall("{call " + sql + "}");
+            int i = 1;
+            for (Object value : values) {
+                callStmt.setObject(i++, value);
+                if (debugging) {
+                    log.log(Level.FINEST, "  * param: {0}", String.valueOf(value));
+                }
+            }
+            return new MultiResults(callStmt, sql, baseTableIndex);
+        } catch (SQLException ex) {
+            throw new ezJDOException("The conditions for the method are not in correct SQL syntax, or you are not passing the correct BaseObject class", ex);
+        }
+    }
+
     /**
      * Deletes all records in the table for a specific object. Warning this will
      * remove all records, and should be used with caution.
@@ -1429,6 +2419,11 @@ public class BaseObject {
         } catch (SQLException ex) {
             throw new ezJDOException("The call to deleteAll() failed. Please make sure the class \"" + className + "\" implemented correctly.", ex);
         }
+        invalidate(getTableCacheIndex(className), null);
+        Session session = Session.current();
+        if (session != null) {
+            session.removeAll(className);
+        }
         if (debugging) {
             log.log(Level.FINEST, "=> rowsAffected: {0}", rowsAffected);
         }
@@ -1541,8 +2536,18 @@ public class BaseObject {
         return attributeTypes[localTableIndex][localTableAttributeIndex];
     }
 
+    /* package */ static int getDatabaseMajorVersion(int tableIndex) {
+        if (tableIndex == -1 || dbMajorVersion[tableIndex] == null) {
+            return 0;
+        }
+        return dbMajorVersion[tableIndex];
+    }
+
     /* package */ static SQLQueryHelper getSQLQueryHelper(String className) throws ezJDOException {
-        int index = getTableCacheIndex(className);
+        return getSQLQueryHelper(getTableCacheIndex(className));
+    }
+
+    /* package */ static SQLQueryHelper getSQLQueryHelper(int index) throws ezJDOException {
         if (index != -1) {
             if (dbName[index].toLowerCase().contains("mysql")) {
                 if (mysqlQueryHelper == null) {
@@ -1556,26 +2561,152 @@ public class BaseObject {
                 return mssqlQueryHelper;
             }
         }
-        throw new ezJDOException("Could not get the SQLQueryHelper (" + dbName[index] + ") for the BaseObject class");
+        throw new ezJDOException("Could not get the SQLQueryHelper (" + (index != -1 ? dbName[index] : null) + ") for the BaseObject class");
     }
 
     /* package */ static <T> T construct(Class<T> clazz, ResultSet resultset) throws ezJDOException {
-        T base = null;
+        return construct(clazz, resultset, null);
+    }
+
+    /**
+     * Returns the shared cache of a class with the Cached annotation, or null.
+     */
+    /* package */ static EntityCache getEntityCache(Class<?> clazz) throws ezJDOException {
+        int baseTableIndex = getTableCacheIndex(clazz.getName());
+        return baseTableIndex < 0 ? null : entityCaches[baseTableIndex];
+    }
+
+    /**
+     * Removes what a write to the table could have changed from the caches of
+     * this node, and records the write in the change log for the other nodes.
+     *
+     * @param key the keys of the object written, null for any row.
+     */
+    private static void invalidate(int tableIndex, EntityKey key) {
+        Results.writeMade();
+        QueryCache.invalidate(tables[tableIndex]);
+        if (entityCaches[tableIndex] != null) {
+            if (key == null) {
+                entityCaches[tableIndex].clear();
+            } else {
+                entityCaches[tableIndex].evict(key);
+            }
+        }
+        ChangeLog.publish(tables[tableIndex], key);
+    }
+
+    /**
+     * Removes the object from the caches and the open session after a version
+     * conflict, so the next find() reads the row the database has now.
+     */
+    private void evictConflict(int tableIndex, EntityKey key) {
+        invalidate(tableIndex, key);
+        Session session = Session.current();
+        if (session != null) {
+            session.remove(this, key);
+        }
+    }
+
+    /**
+     * Invalidates the tables a statement writes to, or every table when the
+     * statement is null or does not name them. Call it once the statement ran,
+     * a reader that starts before the write would otherwise cache the old
+     * rows again.
+     */
+    /* package */ static void invalidateWrites(String sql) {
+        String[] written = sql == null ? new String[0] : QueryCache.findTables(sql, QueryCache.WRITE_KEYWORDS);
+        if (written.length == 0) {
+            applyChange(ChangeLog.ALL_TABLES, null);
+            ChangeLog.publish(ChangeLog.ALL_TABLES, null);
+            return;
+        }
+        for (String table : written) {
+            int index = getIndexForTable(table);
+            if (index < 0) {
+                Results.writeMade();
+                QueryCache.invalidate(table);
+                ChangeLog.publish(table, null);
+            } else {
+                invalidate(index, null);
+            }
+        }
+    }
+
+    /**
+     * Removes a write made by another node from the caches of this node.
+     *
+     * @param table the table written to, or ChangeLog.ALL_TABLES.
+     * @param keyValues the canonical keys of the object written, null for any
+     * row.
+     */
+    /* package */ static void applyChange(String table, String keyValues) {
+        Results.writeMade();
+        if (ChangeLog.ALL_TABLES.equals(table)) {
+            QueryCache.clear();
+            for (EntityCache cache : entityCaches) {
+                if (cache != null) {
+                    cache.clear();
+                }
+            }
+            return;
+        }
+        QueryCache.invalidate(table);
+        int index = getIndexForTable(table);
+        if (index >= 0 && entityCaches[index] != null) {
+            if (keyValues == null) {
+                entityCaches[index].clear();
+            } else {
+                entityCaches[index].evict(EntityKey.valueOf(classes[index], keyValues));
+            }
+        }
+    }
+
+    private static int getIndexForTable(String table) {
+        for (int i = 0; i < tables.length; i++) {
+            if (table.equalsIgnoreCase(tables[i])) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /* package */ static String getDatabaseName(int tableIndex) {
+        return dbName[tableIndex];
+    }
+
+    /**
+     * Returns the row mapper for the class and the columns of the result set.
+     */
+    /* package */ static RowMapper getRowMapper(Class<?> clazz, ResultSet resultset) throws ezJDOException {
+        String[] columns = null;
         if (BaseObject.class.isAssignableFrom(clazz)) {
             String className = clazz.getName();
             int baseTableIndex = getTableCacheIndex(className);
             if (baseTableIndex < 0) {
                 throw new ezJDOException("You did not pass the correct object class: \"" + className + "\". You must specify a class that extends \"ezjdo.com.BaseObject\".");
             }
+            columns = attributes[baseTableIndex];
+        }
+        try {
+            return RowMapper.get(clazz, columns, resultset);
+        } catch (SQLException ex) {
+            throw new ezJDOException("The conditions for the method are not in correct SQL syntax, or you are not passing the correct BaseObject class", ex);
+        }
+    }
+
+    /**
+     * Maps the current row of the result set, the mapper should come from
+     * getRowMapper for the same result set or be null to look it up.
+     */
+    /* package */ static <T> T construct(Class<T> clazz, ResultSet resultset, RowMapper mapper) throws ezJDOException {
+        T base = null;
+        if (BaseObject.class.isAssignableFrom(clazz)) {
+            if (mapper == null) {
+                mapper = getRowMapper(clazz, resultset);
+            }
             try {
-                Constructor c = clazz.getDeclaredConstructor();
-                c.setAccessible(true); // solution
-                base = clazz.cast(c.newInstance());
-                construct((BaseObject) base, resultset);
-            } catch (NoSuchMethodException ex) {
-                throw new ezJDOException("The conditions for the method are not in correct SQL syntax, or you are not passing the correct BaseObject class", ex);
-            } catch (SecurityException ex) {
-                throw new ezJDOException("The conditions for the method are not in correct SQL syntax, or you are not passing the correct BaseObject class", ex);
+                base = clazz.cast(mapper.constructor.newInstance());
+                construct((BaseObject) base, resultset, mapper);
             } catch (InstantiationException ex) {
                 throw new ezJDOException("The conditions for the method are not in correct SQL syntax, or you are not passing the correct BaseObject class", ex);
             } catch (IllegalAccessException ex) {
@@ -1601,17 +2732,15 @@ public class BaseObject {
                 throw new ezJDOException("The conditions for the method are not in correct SQL syntax, or you are not passing the correct BaseObject class", ex);
             }
         } else if (!Number.class.isAssignableFrom(clazz) && !String.class.isAssignableFrom(clazz)) {
+            if (mapper == null) {
+                mapper = getRowMapper(clazz, resultset);
+            }
             try {
-                Constructor c;
-                c = clazz.getDeclaredConstructor();
-                c.setAccessible(true); // solution
-                base = clazz.cast(c.newInstance());
-                int size = resultset.getMetaData().getColumnCount();
-                for (int i = 0; i < size; i++) {
-                    String columnName = resultset.getMetaData().getColumnName(i + 1);
-                    Field field = clazz.getDeclaredField(columnName);
-                    field.setAccessible(true);
-                    field.set(base, resultset.getObject(i + 1));
+                base = clazz.cast(mapper.constructor.newInstance());
+                for (int i = 0; i < mapper.columnCount; i++) {
+                    if (mapper.columnFields[i] != null) {
+                        mapper.columnFields[i].set(base, resultset.getObject(i + 1));
+                    }
                 }
             } catch (InstantiationException ex) {
                 throw new ezJDOException("The conditions for the method are not in correct SQL syntax, or you are not passing the correct BaseObject class", ex);
@@ -1621,12 +2750,6 @@ public class BaseObject {
                 throw new ezJDOException("The conditions for the method are not in correct SQL syntax, or you are not passing the correct BaseObject class", ex);
             } catch (InvocationTargetException ex) {
                 throw new ezJDOException("The conditions for the method are not in correct SQL syntax, or you are not passing the correct BaseObject class", ex);
-            } catch (NoSuchMethodException ex) {
-                throw new ezJDOException("The conditions for the method are not in correct SQL syntax, or you are not passing the correct BaseObject class", ex);
-            } catch (NoSuchFieldException ex) {
-                throw new ezJDOException("The conditions for the method are not in correct SQL syntax, or you are not passing the correct BaseObject class", ex);
-            } catch (SecurityException ex) {
-                throw new ezJDOException("The conditions for the method are not in correct SQL syntax, or you are not passing the correct BaseObject class", ex);
             } catch (SQLException ex) {
                 throw new ezJDOException("The conditions for the method are not in correct SQL syntax, or you are not passing the correct BaseObject class", ex);
             }
@@ -1644,14 +2767,23 @@ public class BaseObject {
     }
 
     /* package */ static void construct(Object o, ResultSet resultset) throws ezJDOException {
+        construct(o, resultset, null);
+    }
+
+    /* package */ static void construct(Object o, ResultSet resultset, RowMapper mapper) throws ezJDOException {
         if (BaseObject.class.isAssignableFrom(o.getClass())) {
+            if (mapper == null) {
+                mapper = getRowMapper(o.getClass(), resultset);
+            }
             try {
                 BaseObject base = (BaseObject) o;
                 base.newRecord = false;
                 int size = attributes[base.tableIndex].length;
                 base.originalValues = new Object[size];
                 for (int n = 0; n < size; n++) {
-                    base.originalValues[n] = resultset.getObject(attributes[base.tableIndex][n]);
+                    int position = mapper.positions[n];
+                    // a missing column is looked up by name so the driver reports it
+                    base.originalValues[n] = position > 0 ? resultset.getObject(position) : resultset.getObject(attributes[base.tableIndex][n]);
                     try {
                         base.fields[n].set(base, base.originalValues[n]);
                     } catch (IllegalArgumentException ex) {
@@ -1687,6 +2819,67 @@ public class BaseObject {
         }
     }
 
+    /**
+     * Returns a copy of the values the object was read with, in attribute
+     * order. hydrate() turns it back into an object without a query.
+     */
+    /* package */ Object[] snapshot() {
+        return originalValues == null ? null : copyValues(originalValues);
+    }
+
+    /**
+     * Copies the values along with the dates and arrays in them, which can be
+     * changed in place. An object changing its date or byte[] must not change
+     * the copy the cache holds for the other readers.
+     */
+    private static Object[] copyValues(Object[] values) {
+        Object[] copy = new Object[values.length];
+        for (int n = 0; n < values.length; n++) {
+            Object value = values[n];
+            if (value instanceof java.util.Date) {
+                // keeps the class, and the nanos of a Timestamp
+                copy[n] = ((java.util.Date) value).clone();
+            } else if (value != null && value.getClass().isArray()) {
+                int length = Array.getLength(value);
+                copy[n] = Array.newInstance(value.getClass().getComponentType(), length);
+                System.arraycopy(value, 0, copy[n], 0, length);
+            } else {
+                copy[n] = value;
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * Builds an object from the values of snapshot() as if it was read from
+     * the database.
+     */
+    /* package */ static <T> T hydrate(Class<T> clazz, Object[] values) throws ezJDOException {
+        try {
+            Constructor<T> c = clazz.getDeclaredConstructor();
+            c.setAccessible(true);
+            T object = c.newInstance();
+            BaseObject base = (BaseObject) object;
+            base.newRecord = false;
+            base.originalValues = copyValues(values);
+            for (int n = 0; n < base.originalValues.length; n++) {
+                base.fields[n].set(base, base.originalValues[n]);
+            }
+            base.postConstruct();
+            return object;
+        } catch (NoSuchMethodException ex) {
+            throw new ezJDOException("The conditions for the method are not in correct SQL syntax, or you are not passing the correct BaseObject class", ex);
+        } catch (InstantiationException ex) {
+            throw new ezJDOException("The conditions for the method are not in correct SQL syntax, or you are not passing the correct BaseObject class", ex);
+        } catch (IllegalAccessException ex) {
+            throw new ezJDOException("The conditions for the method are not in correct SQL syntax, or you are not passing the correct BaseObject class", ex);
+        } catch (IllegalArgumentException ex) {
+            throw new ezJDOException("The conditions for the method are not in correct SQL syntax, or you are not passing the correct BaseObject class", ex);
+        } catch (InvocationTargetException ex) {
+            throw new ezJDOException("The conditions for the method are not in correct SQL syntax, or you are not passing the correct BaseObject class", ex);
+        }
+    }
+
     private void valid() throws ezJDOValidationException {
         // check nulls
 
@@ -1751,6 +2944,71 @@ public class BaseObject {
         return keysWhere.toString();
     }
 
+    /* package */ static String getKeyInClause(int tableIndex, int count) throws ezJDOException {
+        StringBuilder keysWhere = new StringBuilder();
+        if (keyPos[tableIndex].length == 1) {
+            keysWhere.append(BaseObject.keys[tableIndex][0]).append(" IN (");
+            for (int i = 0; i < count; i++) {
+                keysWhere.append(i > 0 ? ", ?" : "?");
+            }
+            keysWhere.append(")");
+        } else {
+            keysWhere.append("(");
+            for (int i = 0; i < count; i++) {
+                if (i > 0) {
+                    keysWhere.append(" OR ");
+                }
+                keysWhere.append("(").append(getKeyWhereClause(tableIndex)).append(")");
+            }
+            keysWhere.append(")");
+        }
+        return keysWhere.toString();
+    }
+
+    /**
+     * Finds the objects for many keys with one query for each chunk of keys.
+     * The objects are returned in the order of the keys, a key that is not
+     * found gives a new object like find() does.
+     */
+    /* package */ static <T> List<T> findByKeys(Class<T> clazz, List<Object[]> keyValues) throws ezJDOException {
+        String className = clazz.getName();
+        int baseTableIndex = getTableCacheIndex(className);
+        if (baseTableIndex < 0) {
+            throw new ezJDOException("You did not pass the correct object class: \"" + className + "\". You must specify a class that extends \"ezjdo.com.BaseObject\".");
+        }
+        HashMap<EntityKey, T> found = new HashMap<EntityKey, T>();
+        for (int start = 0; start < keyValues.size(); start += BATCH_SIZE) {
+            List<Object[]> chunk = keyValues.subList(start, Math.min(keyValues.size(), start + BATCH_SIZE));
+            ArrayList<Object> values = new ArrayList<Object>();
+            for (Object[] keyValue : chunk) {
+                values.addAll(Arrays.asList(keyValue));
+            }
+            String sql = "SELECT * FROM " + tables[baseTableIndex] + " WHERE " + getKeyInClause(baseTableIndex, chunk.size());
+            for (T object : sql(clazz, sql, values.toArray())) {
+                found.put(new EntityKey(className, ((BaseObject) object).getKeyValues()), object);
+            }
+        }
+        ArrayList<T> objects = new ArrayList<T>(keyValues.size());
+        for (Object[] keyValue : keyValues) {
+            T object = found.get(new EntityKey(className, keyValue));
+            objects.add(object != null ? object : find(clazz, keyValue));
+        }
+        return objects;
+    }
+
+    private Object nextVersion(Object current) {
+        Class<?> type = fields[versionPos[tableIndex]].getType();
+        long next = (current == null) ? 1 : ((Number) current).longValue() + 1;
+        if (type == Long.class || type == long.class) {
+            return next;
+        } else if (type == Short.class || type == short.class) {
+            return (short) next;
+        } else if (type == BigDecimal.class) {
+            return BigDecimal.valueOf(next);
+        }
+        return (int) next;
+    }
+
     private String getKeyWhereClause() throws ezJDOException {
         StringBuilder keysWhere = new StringBuilder();
         for (int i = 0; i < keyPos[tableIndex].length; i++) {
@@ -1904,13 +3162,14 @@ public class BaseObject {
             if (tableIndex == -1) {
                 log.log(Level.FINEST, "Populating table cache for {0}", className);
                 StackTraceElement[] stackTrace = Thread.currentThread().getStackTrace();
-                if (stackTrace.length > 10 && "init".equals(stackTrace[10].getMethodName()) && "ezjdo.com.BaseObject".equals(stackTrace[10].getClassName())) {
+                if (stackTrace.length > 10 && "init".equals(stackTrace[10].getMethodName()) && BaseObject.class.getName().equals(stackTrace[10].getClassName())) {
                     return;
                 }
 
                 Class clazz = null;
                 String tableName = null, sqlDriverClass = null, connectionString = null;
                 Boolean localSaveKeys = false;
+                Cached cached = null;
                 try {
                     clazz = Class.forName(className);
                 } catch (ClassNotFoundException ex) {
@@ -1925,6 +3184,8 @@ public class BaseObject {
                             sqlDriverClass = connAnnotation.sqlDriverClass();
                             connectionString = connAnnotation.connectionString();
                             localSaveKeys = connAnnotation.saveKeys();
+                        } else if (annotation instanceof Cached) {
+                            cached = (Cached) annotation;
                         }
                     }
                 }
@@ -1940,6 +3201,9 @@ public class BaseObject {
                 sqlDriverClasses[tableIndex] = sqlDriverClass;
                 connectionStrings[tableIndex] = connectionString;
                 saveKeys[tableIndex] = localSaveKeys;
+                if (cached != null) {
+                    entityCaches[tableIndex] = new EntityCache(className, cached.maxEntries(), cached.ttl());
+                }
 
                 ArrayList<Field> al_fields = new ArrayList<Field>();
                 ArrayList<String> al_attributes = new ArrayList<String>();
@@ -1990,6 +3254,7 @@ public class BaseObject {
 
                 ArrayList<String> al_keys = new ArrayList<String>();
                 ArrayList<Integer> al_keyPos = new ArrayList<Integer>();
+                Integer localVersionPos = -1;
                 for (int i = 0; i < attributes[tableIndex].length; i++) {
                     if (clazz != null) {
                         try {
@@ -1999,6 +3264,8 @@ public class BaseObject {
                                 if (annotation instanceof Key) {
                                     al_keys.add(attributes[tableIndex][i]);
                                     al_keyPos.add(i);
+                                } else if (annotation instanceof Version) {
+                                    localVersionPos = i;
                                 }
                             }
                         } catch (SecurityException ex) {
@@ -2007,6 +3274,10 @@ public class BaseObject {
                 }
                 keys[tableIndex] = al_keys.toArray(new String[0]);
                 keyPos[tableIndex] = al_keyPos.toArray(new Integer[0]);
+                if (localVersionPos >= 0 && al_keyPos.contains(localVersionPos)) {
+                    throw new ezJDOException("The Version annotation cannot be used on a key attribute.");
+                }
+                versionPos[tableIndex] = localVersionPos;
                 defaultValues[tableIndex] = new Object[attributes[tableIndex].length];
                 mappings[tableIndex] = new Many[attributes[tableIndex].length][];
 
@@ -2064,6 +3335,7 @@ public class BaseObject {
                         boolean tblexists = false;
                         DatabaseMetaData metaData = getConnection(tableIndex, Thread.currentThread().getId()).getMetaData();
                         dbName[tableIndex] = metaData.getDatabaseProductName();
+                        dbMajorVersion[tableIndex] = metaData.getDatabaseMajorVersion();
                         //check to see if table exists
                         ResultSet rsTables = metaData.getTables(null, null, null, null);
                         while (rsTables.next()) {
@@ -2129,6 +3401,7 @@ public class BaseObject {
                         throw new ezJDOException("The method getColumnInfo() faild to retreive information about the table. Please check your class: \"" + className + "\" implementation.", ex);
                     }
                 }
+                resolveRelationPlans(tableIndex);
             }
 
             boolean skipFields = true;
@@ -2217,7 +3490,7 @@ public class BaseObject {
         try {
             StackTraceElement[] stackTraceElements = Thread.currentThread().getStackTrace();
             StackTraceElement caller = stackTraceElements[2];
-            if (!("chilliwebs.ezjdo.com.BaseObject".equals(caller.getClassName()) && "init".equals(caller.getMethodName()))) {
+            if (!(BaseObject.class.getName().equals(caller.getClassName()) && "init".equals(caller.getMethodName()))) {
                 Constructor c;
                 Class clazz = Class.forName(className);
                 try {
@@ -2312,6 +3585,9 @@ public class BaseObject {
         String[] temp14 = new String[dbName.length + 5];
         System.arraycopy(dbName, 0, temp14, 0, dbName.length);
         dbName = temp14;
+        Integer[] temp17 = new Integer[dbMajorVersion.length + 5];
+        System.arraycopy(dbMajorVersion, 0, temp17, 0, dbMajorVersion.length);
+        dbMajorVersion = temp17;
         String[] temp = new String[tables.length + 5];
         System.arraycopy(tables, 0, temp, 0, tables.length);
         tables = temp;
@@ -2347,12 +3623,21 @@ public class BaseObject {
         Integer[][] temp7 = new Integer[keyPos.length + 5][];
         System.arraycopy(keyPos, 0, temp7, 0, keyPos.length);
         keyPos = temp7;
+        Integer[] temp16 = new Integer[versionPos.length + 5];
+        System.arraycopy(versionPos, 0, temp16, 0, versionPos.length);
+        versionPos = temp16;
         Object[][] temp8 = new Object[defaultValues.length + 5][];
         System.arraycopy(defaultValues, 0, temp8, 0, defaultValues.length);
         defaultValues = temp8;
         Many[][][] temp9 = new Many[mappings.length + 5][][];
         System.arraycopy(mappings, 0, temp9, 0, mappings.length);
         mappings = temp9;
+        RelationPlan[][] temp18 = new RelationPlan[relationPlans.length + 5][];
+        System.arraycopy(relationPlans, 0, temp18, 0, relationPlans.length);
+        relationPlans = temp18;
+        EntityCache[] temp19 = new EntityCache[entityCaches.length + 5];
+        System.arraycopy(entityCaches, 0, temp19, 0, entityCaches.length);
+        entityCaches = temp19;
         return i;
     }
 
@@ -2362,7 +3647,7 @@ public class BaseObject {
         return caller;
     }
 
-    private static String join(Object[] objects, String glue) {
+    /* package */ static String join(Object[] objects, String glue) {
         int k = objects.length;
         if (k == 0) {
             return "";
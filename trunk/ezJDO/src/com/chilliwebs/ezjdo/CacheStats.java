@@ -0,0 +1,85 @@
+/*
+ * Copyright 2013 Nick Hecht chilliwebs@gmail.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.chilliwebs.ezjdo;
+
+/**
+ * The counters of an entity cache at the time they were read.
+ *
+ * @author Nick Hecht chilliwebs@gmail.com
+ */
+public final class CacheStats {
+
+    private final String className;
+    private final long hits;
+    private final long misses;
+    private final long evictions;
+    private final int size;
+
+    /* package */ CacheStats(String className, long hits, long misses, long evictions, int size) {
+        this.className = className;
+        this.hits = hits;
+        this.misses = misses;
+        this.evictions = evictions;
+        this.size = size;
+    }
+
+    public String getClassName() {
+        return className;
+    }
+
+    /**
+     * Returns the number of lookups answered from the cache.
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * Returns the number of lookups that had to read the database.
+     */
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Returns the number of entries dropped because the cache was full or
+     * the entry was too old.
+     */
+    public long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * Returns the number of objects in the cache.
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Returns the part of the lookups answered from the cache, 0 before the
+     * first lookup.
+     */
+    public double getHitRate() {
+        long total = hits + misses;
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    @Override
+    public String toString() {
+        return className + "[hits=" + hits + ", misses=" + misses + ", evictions=" + evictions + ", size=" + size + "]";
+    }
+}
@@ -0,0 +1,287 @@
+/*
+ * Copyright 2013 Nick Hecht chilliwebs@gmail.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.chilliwebs.ezjdo;
+
+import com.chilliwebs.ezjdo.exceptions.ezJDOException;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Iterator;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.logging.Level;
+
+/**
+ * Keeps the caches of several application nodes up to date through a table
+ * in the database they share. Once started every write through ezJDO adds a
+ * row to the ezjdo_changelog table, and a background thread reads the rows
+ * added by the other nodes in the order of their sequence number and removes
+ * the objects and queries they changed from the local caches.
+ *
+ * <p>For example:</p> <blockquote><pre>
+ * ChangeLog.start(Currency.class, 1000); // on every node
+ * </pre></blockquote>
+ *
+ * <p>The table is created in the database of the class passed to start() if
+ * it does not exist. Rows older than the retention time are deleted by the
+ * poller.</p>
+ *
+ * <p>Sequence numbers are handed out when a row is inserted, but the rows
+ * become visible when their transactions commit, so a row with a lower number
+ * can show up after a higher one was read. The numbers skipped over are kept
+ * as gaps and read again on every poll until they show up or the gap timeout
+ * passes, a number that never shows up belonged to a rolled back insert.</p>
+ *
+ * @author Nick Hecht chilliwebs@gmail.com
+ */
+public final class ChangeLog {
+
+    /* package */ static final String TABLE = "ezjdo_changelog";
+    /* package */ static final String ALL_TABLES = "*"; // a write that can touch any table
+    private static final long RETENTION = 24L * 60 * 60 * 1000; // milliseconds a row is kept
+    private static final int PRUNE_POLLS = 600; // polls between deleting old rows
+    private static final long GAP_TIMEOUT = 60L * 1000; // milliseconds a skipped seq is waited for
+    private static final int MAX_GAPS = 10000;
+    private static final String NODE = UUID.randomUUID().toString();
+    private static volatile ChangeLog running;
+    private final int tableIndex;
+    private final long pollMillis;
+    private final Thread poller;
+    private long lastSeq;
+    private final TreeMap<Long, Long> gaps = new TreeMap<Long, Long>(); // skipped seq, and when to stop waiting for it
+    private volatile boolean stopped = false;
+
+    private ChangeLog(int tableIndex, long pollMillis) {
+        this.tableIndex = tableIndex;
+        this.pollMillis = pollMillis;
+        this.poller = new Thread("ezjdo-changelog") {
+            @Override
+            public void run() {
+                poll();
+            }
+        };
+        poller.setDaemon(true);
+    }
+
+    /**
+     * Starts publishing the writes of this node and polling for the writes of
+     * the other nodes.
+     *
+     * @param clazz a BaseObject class whose database holds the change log.
+     * @param pollMillis the milliseconds between polls.
+     * @throws ezJDOException
+     */
+    public static synchronized void start(Class<? extends BaseObject> clazz, long pollMillis) throws ezJDOException {
+        if (running != null) {
+            return;
+        }
+        int tableIndex = BaseObject.getTableCacheIndex(clazz.getName());
+        if (tableIndex < 0) {
+            throw new ezJDOException("You did not pass the correct object class: \"" + clazz.getName() + "\". You must specify a class that extends \"ezjdo.com.BaseObject\".");
+        }
+        ChangeLog changeLog = new ChangeLog(tableIndex, pollMillis);
+        try {
+            Connection connection = BaseObject.getConnection(tableIndex, Thread.currentThread().getId());
+            createTable(connection, BaseObject.getDatabaseName(tableIndex));
+            // only the changes made from now on matter, the caches are empty
+            PreparedStatement prepStmt = connection.prepareStatement("SELECT MAX(seq) FROM " + TABLE);
+            ResultSet results = prepStmt.executeQuery();
+            if (results.next()) {
+                changeLog.lastSeq = results.getLong(1);
+            }
+            results.close();
+            prepStmt.close();
+        } catch (SQLException ex) {
+            throw new ezJDOException("The change log table could not be read.", ex);
+        }
+        running = changeLog;
+        changeLog.poller.start();
+        if (BaseObject.debugging) {
+            BaseObject.log.log(Level.INFO, "change log started for node {0} at seq {1}", new Object[]{NODE, changeLog.lastSeq});
+        }
+    }
+
+    /**
+     * Stops publishing and polling.
+     */
+    public static synchronized void stop() {
+        if (running != null) {
+            running.stopped = true;
+            running.poller.interrupt();
+            running = null;
+        }
+    }
+
+    /**
+     * Returns the id this node writes into the change log.
+     */
+    public static String getNode() {
+        return NODE;
+    }
+
+    private static boolean tableExists(Connection connection) throws SQLException {
+        DatabaseMetaData metaData = connection.getMetaData();
+        // the name pattern is case sensitive, databases keep unquoted names in upper or lower case
+        for (String name : new String[]{TABLE, TABLE.toUpperCase()}) {
+            ResultSet rsTables = metaData.getTables(null, null, name, null);
+            try {
+                while (rsTables.next()) {
+                    if (TABLE.equalsIgnoreCase(rsTables.getString("TABLE_NAME"))) {
+                        return true;
+                    }
+                }
+            } finally {
+                rsTables.close();
+            }
+        }
+        return false;
+    }
+
+    private static void createTable(Connection connection, String dbName) throws SQLException {
+        if (tableExists(connection)) {
+            return;
+        }
+        String name = dbName == null ? "" : dbName.toLowerCase();
+        String seq;
+        String created = "TIMESTAMP";
+        if (name.contains("mysql")) {
+            seq = "BIGINT AUTO_INCREMENT PRIMARY KEY";
+        } else if (name.contains("microsoft")) {
+            seq = "BIGINT IDENTITY(1,1) PRIMARY KEY";
+            created = "DATETIME";
+        } else {
+            seq = "BIGINT GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY";
+        }
+        String sql = "CREATE TABLE " + TABLE + " (seq " + seq + ", table_name VARCHAR(255) NOT NULL, key_values VARCHAR(1024), node VARCHAR(64) NOT NULL, created " + created + " NOT NULL)";
+        if (BaseObject.debugging) {
+            BaseObject.log.log(Level.INFO, sql);
+        }
+        PreparedStatement prepStmt = connection.prepareStatement(sql);
+        try {
+            prepStmt.executeUpdate();
+        } catch (SQLException ex) {
+            // another node starting at the same time can create it first
+            if (!tableExists(connection)) {
+                throw ex;
+            }
+            if (BaseObject.debugging) {
+                BaseObject.log.log(Level.INFO, "the change log table was created by another node");
+            }
+        } finally {
+            prepStmt.close();
+        }
+    }
+
+    /**
+     * Records a write when the change log is running.
+     *
+     * @param table the table written to, or ALL_TABLES.
+     * @param key the keys of the object written, null for any row.
+     */
+    /* package */ static void publish(String table, EntityKey key) {
+        ChangeLog changeLog = running;
+        if (changeLog == null) {
+            return;
+        }
+        String sql = "INSERT INTO " + TABLE + " (table_name, key_values, node, created) VALUES (?, ?, ?, ?)";
+        try {
+            PreparedStatement prepStmt = BaseObject.getConnection(changeLog.tableIndex, Thread.currentThread().getId()).prepareStatement(sql);
+            prepStmt.setString(1, table);
+            prepStmt.setString(2, key == null ? null : key.getCanonical());
+            prepStmt.setString(3, NODE);
+            prepStmt.setTimestamp(4, new Timestamp(System.currentTimeMillis()));
+            prepStmt.executeUpdate();
+            prepStmt.close();
+        } catch (SQLException ex) {
+            // the write is done, the other nodes catch up when their entries expire
+            BaseObject.log.log(Level.WARNING, "The change to " + table + " could not be written to the change log.", ex);
+        } catch (ezJDOException ex) {
+            BaseObject.log.log(Level.WARNING, "The change to " + table + " could not be written to the change log.", ex);
+        }
+    }
+
+    private void poll() {
+        int polls = 0;
+        while (!stopped) {
+            try {
+                Thread.sleep(pollMillis);
+            } catch (InterruptedException ex) {
+                return;
+            }
+            try {
+                read();
+                if (++polls % PRUNE_POLLS == 0) {
+                    prune();
+                }
+            } catch (SQLException ex) {
+                BaseObject.log.log(Level.WARNING, "The change log could not be read.", ex);
+            } catch (ezJDOException ex) {
+                BaseObject.log.log(Level.WARNING, "The change log could not be read.", ex);
+            }
+        }
+    }
+
+    private void read() throws SQLException, ezJDOException {
+        long now = System.currentTimeMillis();
+        // read from the oldest gap, the rows between it and lastSeq were applied already
+        long from = gaps.isEmpty() ? lastSeq : Math.min(lastSeq, gaps.firstKey() - 1);
+        PreparedStatement prepStmt = BaseObject.getConnection(tableIndex, Thread.currentThread().getId()).prepareStatement("SELECT seq, table_name, key_values, node FROM " + TABLE + " WHERE seq > ? ORDER BY seq");
+        prepStmt.setLong(1, from);
+        ResultSet results = prepStmt.executeQuery();
+        int changes = 0;
+        while (results.next()) {
+            long seq = results.getLong(1);
+            if (seq <= lastSeq) {
+                if (gaps.remove(seq) == null) {
+                    continue;
+                }
+            } else {
+                for (long skipped = Math.max(lastSeq + 1, seq - MAX_GAPS); skipped < seq; skipped++) {
+                    gaps.put(skipped, now + GAP_TIMEOUT);
+                }
+                lastSeq = seq;
+            }
+            if (!NODE.equals(results.getString(4))) {
+                BaseObject.applyChange(results.getString(2), results.getString(3));
+                changes++;
+            }
+        }
+        results.close();
+        prepStmt.close();
+        Iterator<Long> expires = gaps.values().iterator();
+        while (expires.hasNext()) {
+            if (expires.next() < now) {
+                expires.remove();
+            }
+        }
+        while (gaps.size() > MAX_GAPS) {
+            gaps.pollFirstEntry();
+        }
+        if (BaseObject.debugging && changes > 0) {
+            BaseObject.log.log(Level.FINER, "applied {0} changes from the change log, seq {1}", new Object[]{changes, lastSeq});
+        }
+    }
+
+    private void prune() throws SQLException, ezJDOException {
+        PreparedStatement prepStmt = BaseObject.getConnection(tableIndex, Thread.currentThread().getId()).prepareStatement("DELETE FROM " + TABLE + " WHERE created < ?");
+        prepStmt.setTimestamp(1, new Timestamp(System.currentTimeMillis() - RETENTION));
+        prepStmt.executeUpdate();
+        prepStmt.close();
+    }
+}
@@ -0,0 +1,331 @@
+/*
+ * Copyright 2013 Nick Hecht chilliwebs@gmail.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.chilliwebs.ezjdo;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Optional;
+import java.util.Spliterator;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.BinaryOperator;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.function.ToDoubleFunction;
+import java.util.function.ToIntFunction;
+import java.util.function.ToLongFunction;
+import java.util.stream.Collector;
+import java.util.stream.DoubleStream;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+
+/**
+ * A stream over results that closes itself when a terminal operation returns,
+ * so short circuit operations like findFirst() or limit() followed by a
+ * terminal operation release the statement without the caller closing the
+ * stream.
+ *
+ * <p>iterator() and spliterator() hand the rows out instead of consuming
+ * them, and the primitive streams of mapToInt() and the like are not closed
+ * by their terminal operations, so those must still be closed by the
+ * caller.</p>
+ *
+ * @author Nick Hecht chilliwebs@gmail.com
+ */
+/* package */ final class ClosingStream<T> implements Stream<T> {
+
+    private final Stream<T> stream;
+
+    /* package */ ClosingStream(Stream<T> stream) {
+        this.stream = stream;
+    }
+
+    private <R> Stream<R> wrap(Stream<R> next) {
+        return new ClosingStream<R>(next);
+    }
+
+    @Override
+    public Stream<T> filter(Predicate<? super T> predicate) {
+        return wrap(stream.filter(predicate));
+    }
+
+    @Override
+    public <R> Stream<R> map(Function<? super T, ? extends R> mapper) {
+        return wrap(stream.<R>map(mapper));
+    }
+
+    @Override
+    public IntStream mapToInt(ToIntFunction<? super T> mapper) {
+        return stream.mapToInt(mapper);
+    }
+
+    @Override
+    public LongStream mapToLong(ToLongFunction<? super T> mapper) {
+        return stream.mapToLong(mapper);
+    }
+
+    @Override
+    public DoubleStream mapToDouble(ToDoubleFunction<? super T> mapper) {
+        return stream.mapToDouble(mapper);
+    }
+
+    @Override
+    public <R> Stream<R> flatMap(Function<? super T, ? extends Stream<? extends R>> mapper) {
+        return wrap(stream.<R>flatMap(mapper));
+    }
+
+    @Override
+    public IntStream flatMapToInt(Function<? super T, ? extends IntStream> mapper) {
+        return stream.flatMapToInt(mapper);
+    }
+
+    @Override
+    public LongStream flatMapToLong(Function<? super T, ? extends LongStream> mapper) {
+        return stream.flatMapToLong(mapper);
+    }
+
+    @Override
+    public DoubleStream flatMapToDouble(Function<? super T, ? extends DoubleStream> mapper) {
+        return stream.flatMapToDouble(mapper);
+    }
+
+    @Override
+    public Stream<T> distinct() {
+        return wrap(stream.distinct());
+    }
+
+    @Override
+    public Stream<T> sorted() {
+        return wrap(stream.sorted());
+    }
+
+    @Override
+    public Stream<T> sorted(Comparator<? super T> comparator) {
+        return wrap(stream.sorted(comparator));
+    }
+
+    @Override
+    public Stream<T> peek(Consumer<? super T> action) {
+        return wrap(stream.peek(action));
+    }
+
+    @Override
+    public Stream<T> limit(long maxSize) {
+        return wrap(stream.limit(maxSize));
+    }
+
+    @Override
+    public Stream<T> skip(long n) {
+        return wrap(stream.skip(n));
+    }
+
+    @Override
+    public void forEach(Consumer<? super T> action) {
+        try {
+            stream.forEach(action);
+        } finally {
+            stream.close();
+        }
+    }
+
+    @Override
+    public void forEachOrdered(Consumer<? super T> action) {
+        try {
+            stream.forEachOrdered(action);
+        } finally {
+            stream.close();
+        }
+    }
+
+    @Override
+    public Object[] toArray() {
+        try {
+            return stream.toArray();
+        } finally {
+            stream.close();
+        }
+    }
+
+    @Override
+    public <A> A[] toArray(IntFunction<A[]> generator) {
+        try {
+            return stream.toArray(generator);
+        } finally {
+            stream.close();
+        }
+    }
+
+    @Override
+    public T reduce(T identity, BinaryOperator<T> accumulator) {
+        try {
+            return stream.reduce(identity, accumulator);
+        } finally {
+            stream.close();
+        }
+    }
+
+    @Override
+    public Optional<T> reduce(BinaryOperator<T> accumulator) {
+        try {
+            return stream.reduce(accumulator);
+        } finally {
+            stream.close();
+        }
+    }
+
+    @Override
+    public <U> U reduce(U identity, BiFunction<U, ? super T, U> accumulator, BinaryOperator<U> combiner) {
+        try {
+            return stream.reduce(identity, accumulator, combiner);
+        } finally {
+            stream.close();
+        }
+    }
+
+    @Override
+    public <R> R collect(Supplier<R> supplier, BiConsumer<R, ? super T> accumulator, BiConsumer<R, R> combiner) {
+        try {
+            return stream.collect(supplier, accumulator, combiner);
+        } finally {
+            stream.close();
+        }
+    }
+
+    @Override
+    public <R, A> R collect(Collector<? super T, A, R> collector) {
+        try {
+            return stream.collect(collector);
+        } finally {
+            stream.close();
+        }
+    }
+
+    @Override
+    public Optional<T> min(Comparator<? super T> comparator) {
+        try {
+            return stream.min(comparator);
+        } finally {
+            stream.close();
+        }
+    }
+
+    @Override
+    public Optional<T> max(Comparator<? super T> comparator) {
+        try {
+            return stream.max(comparator);
+        } finally {
+            stream.close();
+        }
+    }
+
+    @Override
+    public long count() {
+        try {
+            return stream.count();
+        } finally {
+            stream.close();
+        }
+    }
+
+    @Override
+    public boolean anyMatch(Predicate<? super T> predicate) {
+        try {
+            return stream.anyMatch(predicate);
+        } finally {
+            stream.close();
+        }
+    }
+
+    @Override
+    public boolean allMatch(Predicate<? super T> predicate) {
+        try {
+            return stream.allMatch(predicate);
+        } finally {
+            stream.close();
+        }
+    }
+
+    @Override
+    public boolean noneMatch(Predicate<? super T> predicate) {
+        try {
+            return stream.noneMatch(predicate);
+        } finally {
+            stream.close();
+        }
+    }
+
+    @Override
+    public Optional<T> findFirst() {
+        try {
+            return stream.findFirst();
+        } finally {
+            stream.close();
+        }
+    }
+
+    @Override
+    public Optional<T> findAny() {
+        try {
+            return stream.findAny();
+        } finally {
+            stream.close();
+        }
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+        return stream.iterator();
+    }
+
+    @Override
+    public Spliterator<T> spliterator() {
+        return stream.spliterator();
+    }
+
+    @Override
+    public boolean isParallel() {
+        return stream.isParallel();
+    }
+
+    @Override
+    public Stream<T> sequential() {
+        return wrap(stream.sequential());
+    }
+
+    @Override
+    public Stream<T> parallel() {
+        return wrap(stream.parallel());
+    }
+
+    @Override
+    public Stream<T> unordered() {
+        return wrap(stream.unordered());
+    }
+
+    @Override
+    public Stream<T> onClose(Runnable closeHandler) {
+        return wrap(stream.onClose(closeHandler));
+    }
+
+    @Override
+    public void close() {
+        stream.close();
+    }
+}
@@ -0,0 +1,271 @@
+/*
+ * Copyright 2013 Nick Hecht chilliwebs@gmail.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.chilliwebs.ezjdo;
+
+import com.chilliwebs.ezjdo.exceptions.ezJDOException;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * The rows of a query stored column by column. Whole number columns are read
+ * with getInt or getLong and decimal columns with getDouble into primitive
+ * arrays, so no value is boxed and no object is created for each row. Other
+ * columns are kept as objects.
+ *
+ * <p>A null in a primitive column is stored as 0, use isNull to tell them
+ * apart.</p>
+ *
+ * @author Nick Hecht chilliwebs@gmail.com
+ */
+public class ColumnarResults {
+
+    /* package */ static final int AUTO = -1, INT = 0, LONG = 1, DOUBLE = 2, OBJECT = 3;
+    private static final int INITIAL_CAPACITY = 1024;
+    private final String[] columnNames;
+    private final int[] kinds;
+    private final Object[] columns;
+    private final BitSet[] nulls;
+    private int size = 0;
+    private int capacity = INITIAL_CAPACITY;
+
+    private ColumnarResults(String[] columnNames, int[] kinds) {
+        this.columnNames = columnNames;
+        this.kinds = kinds;
+        this.columns = new Object[kinds.length];
+        this.nulls = new BitSet[kinds.length];
+        for (int i = 0; i < kinds.length; i++) {
+            switch (kinds[i]) {
+                case INT:
+                    columns[i] = new int[INITIAL_CAPACITY];
+                    break;
+                case LONG:
+                    columns[i] = new long[INITIAL_CAPACITY];
+                    break;
+                case DOUBLE:
+                    columns[i] = new double[INITIAL_CAPACITY];
+                    break;
+                default:
+                    columns[i] = new Object[INITIAL_CAPACITY];
+            }
+            nulls[i] = new BitSet();
+        }
+    }
+
+    /**
+     * Reads every row of the result set.
+     *
+     * @param resultSet the rows to read.
+     * @param kind the kind every column is read as, or AUTO to pick it from
+     * the column type.
+     */
+    /* package */ static ColumnarResults read(ResultSet resultSet, int kind) throws SQLException {
+        ResultSetMetaData metaData = resultSet.getMetaData();
+        int count = metaData.getColumnCount();
+        String[] names = new String[count];
+        int[] kinds = new int[count];
+        for (int i = 0; i < count; i++) {
+            names[i] = metaData.getColumnLabel(i + 1);
+            kinds[i] = kind != AUTO ? kind : getKind(metaData.getColumnType(i + 1), metaData.getScale(i + 1));
+        }
+        ColumnarResults results = new ColumnarResults(names, kinds);
+        while (resultSet.next()) {
+            results.readRow(resultSet);
+        }
+        results.trim();
+        return results;
+    }
+
+    private static int getKind(int type, int scale) {
+        switch (type) {
+            case Types.TINYINT:
+            case Types.SMALLINT:
+            case Types.INTEGER:
+                return INT;
+            case Types.BIGINT:
+                return LONG;
+            case Types.DECIMAL:
+            case Types.NUMERIC:
+                return scale == 0 ? LONG : DOUBLE;
+            case Types.REAL:
+            case Types.FLOAT:
+            case Types.DOUBLE:
+                return DOUBLE;
+            default:
+                return OBJECT;
+        }
+    }
+
+    private void readRow(ResultSet resultSet) throws SQLException {
+        if (size == capacity) {
+            grow();
+        }
+        for (int i = 0; i < kinds.length; i++) {
+            switch (kinds[i]) {
+                case INT:
+                    ((int[]) columns[i])[size] = resultSet.getInt(i + 1);
+                    break;
+                case LONG:
+                    ((long[]) columns[i])[size] = resultSet.getLong(i + 1);
+                    break;
+                case DOUBLE:
+                    ((double[]) columns[i])[size] = resultSet.getDouble(i + 1);
+                    break;
+                default:
+                    ((Object[]) columns[i])[size] = resultSet.getObject(i + 1);
+            }
+            if (resultSet.wasNull()) {
+                nulls[i].set(size);
+            }
+        }
+        size++;
+    }
+
+    private void grow() {
+        resize(size * 2);
+    }
+
+    private void trim() {
+        resize(size);
+    }
+
+    private void resize(int capacity) {
+        this.capacity = capacity;
+        for (int i = 0; i < kinds.length; i++) {
+            switch (kinds[i]) {
+                case INT:
+                    columns[i] = Arrays.copyOf((int[]) columns[i], capacity);
+                    break;
+                case LONG:
+                    columns[i] = Arrays.copyOf((long[]) columns[i], capacity);
+                    break;
+                case DOUBLE:
+                    columns[i] = Arrays.copyOf((double[]) columns[i], capacity);
+                    break;
+                default:
+                    columns[i] = Arrays.copyOf((Object[]) columns[i], capacity);
+            }
+        }
+    }
+
+    /**
+     * @return the number of rows.
+     */
+    public int size() {
+        return size;
+    }
+
+    public int getColumnCount() {
+        return columnNames.length;
+    }
+
+    public String getColumnName(int column) {
+        return columnNames[column];
+    }
+
+    /**
+     * @param name the column label, case is ignored.
+     * @return the index of the column or -1 if there is no such column.
+     */
+    public int getColumnIndex(String name) {
+        for (int i = 0; i < columnNames.length; i++) {
+            if (columnNames[i].equalsIgnoreCase(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public boolean isNull(int row, int column) {
+        if (row >= size) {
+            throw new IndexOutOfBoundsException("Row: " + row + ", Size: " + size);
+        }
+        return nulls[column].get(row);
+    }
+
+    /**
+     * Returns the values of a whole number column that fits in an int.
+     *
+     * @param column the index of the column, starting at 0.
+     * @return the values, the array is not copied.
+     * @throws ezJDOException if the column was not read as int.
+     */
+    public int[] getInts(int column) throws ezJDOException {
+        if (kinds[column] != INT) {
+            throw new ezJDOException("The column \"" + columnNames[column] + "\" was not read as int values.");
+        }
+        return (int[]) columns[column];
+    }
+
+    /**
+     * Returns the values of a whole number column, int columns are widened.
+     *
+     * @param column the index of the column, starting at 0.
+     * @return the values, the array is only copied for int columns.
+     * @throws ezJDOException if the column was not read as whole numbers.
+     */
+    public long[] getLongs(int column) throws ezJDOException {
+        if (kinds[column] == LONG) {
+            return (long[]) columns[column];
+        } else if (kinds[column] == INT) {
+            int[] ints = (int[]) columns[column];
+            long[] longs = new long[ints.length];
+            for (int i = 0; i < ints.length; i++) {
+                longs[i] = ints[i];
+            }
+            return longs;
+        }
+        throw new ezJDOException("The column \"" + columnNames[column] + "\" was not read as long values.");
+    }
+
+    /**
+     * Returns the values of a numeric column, whole number columns are
+     * widened.
+     *
+     * @param column the index of the column, starting at 0.
+     * @return the values, the array is only copied for whole number columns.
+     * @throws ezJDOException if the column was not read as numbers.
+     */
+    public double[] getDoubles(int column) throws ezJDOException {
+        if (kinds[column] == DOUBLE) {
+            return (double[]) columns[column];
+        } else if (kinds[column] == OBJECT) {
+            throw new ezJDOException("The column \"" + columnNames[column] + "\" was not read as double values.");
+        }
+        double[] doubles = new double[size];
+        for (int i = 0; i < size; i++) {
+            doubles[i] = kinds[column] == INT ? ((int[]) columns[column])[i] : ((long[]) columns[column])[i];
+        }
+        return doubles;
+    }
+
+    /**
+     * Returns the values of a column that is not numeric.
+     *
+     * @param column the index of the column, starting at 0.
+     * @return the values, the array is not copied.
+     * @throws ezJDOException if the column was read as numbers.
+     */
+    public Object[] getObjects(int column) throws ezJDOException {
+        if (kinds[column] != OBJECT) {
+            throw new ezJDOException("The column \"" + columnNames[column] + "\" was read as numbers, use getInts, getLongs or getDoubles.");
+        }
+        return (Object[]) columns[column];
+    }
+}
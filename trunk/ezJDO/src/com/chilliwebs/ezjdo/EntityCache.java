@@ -0,0 +1,185 @@
+/*
+ * Copyright 2013 Nick Hecht chilliwebs@gmail.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.chilliwebs.ezjdo;
+
+import com.chilliwebs.ezjdo.exceptions.ezJDOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * The shared cache of a class with the Cached annotation. It keeps the values
+ * of each object by its keys, and the keys that findFirst() found for each
+ * query. The values are copies, hydrate() builds a new object from them.
+ *
+ * @author Nick Hecht chilliwebs@gmail.com
+ */
+public final class EntityCache {
+
+    private final String className;
+    private final long ttl;
+    private final LRUCache<EntityKey, CacheEntry> objects;
+    private final LRUCache<String, CacheEntry> lookups;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private long generation = 0; // changes on every evict or clear
+
+    /* package */ EntityCache(String className, int maxEntries, long ttlSeconds) {
+        this.className = className;
+        this.ttl = TimeUnit.SECONDS.toNanos(ttlSeconds);
+        this.objects = new LRUCache<EntityKey, CacheEntry>(maxEntries) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<EntityKey, CacheEntry> eldest) {
+                boolean remove = super.removeEldestEntry(eldest);
+                if (remove) {
+                    evictions.incrementAndGet();
+                }
+                return remove;
+            }
+        };
+        this.lookups = new LRUCache<String, CacheEntry>(maxEntries);
+    }
+
+    /**
+     * Returns the counters of the cache of the class, or null if the class
+     * does not have the Cached annotation.
+     *
+     * @param clazz the class with the Cached annotation.
+     * @throws ezJDOException
+     */
+    public static CacheStats getStats(Class<?> clazz) throws ezJDOException {
+        EntityCache cache = BaseObject.getEntityCache(clazz);
+        return cache == null ? null : cache.getStats();
+    }
+
+    /**
+     * Empties the cache of the class.
+     *
+     * @param clazz the class with the Cached annotation.
+     * @throws ezJDOException
+     */
+    public static void clear(Class<?> clazz) throws ezJDOException {
+        EntityCache cache = BaseObject.getEntityCache(clazz);
+        if (cache != null) {
+            cache.clear();
+        }
+    }
+
+    /* package */ synchronized CacheStats getStats() {
+        return new CacheStats(className, hits.get(), misses.get(), evictions.get(), objects.size());
+    }
+
+    /**
+     * Returns the values of the object with the keys, or null.
+     */
+    /* package */ synchronized Object[] get(EntityKey key) {
+        CacheEntry entry = fresh(objects, key);
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return (Object[]) entry.value;
+    }
+
+    /**
+     * Returns the values of the object findFirst() found for the query, or
+     * null.
+     */
+    /* package */ synchronized Object[] lookup(String query) {
+        CacheEntry entry = fresh(lookups, query);
+        CacheEntry object = entry == null ? null : fresh(objects, (EntityKey) entry.value);
+        if (object == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return (Object[]) object.value;
+    }
+
+    /* package */ synchronized long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Keeps the values of the object, unless an evict or clear was made since
+     * the values started to be read at the given generation.
+     */
+    /* package */ synchronized void put(EntityKey key, Object[] values, long startGeneration) {
+        if (startGeneration != generation) {
+            return;
+        }
+        objects.put(key, new CacheEntry(values, System.nanoTime() + ttl));
+    }
+
+    /**
+     * Keeps the values of the object findFirst() found for the query, unless
+     * an evict or clear was made since the values started to be read at the
+     * given generation.
+     */
+    /* package */ synchronized void put(String query, EntityKey key, Object[] values, long startGeneration) {
+        if (startGeneration != generation) {
+            return;
+        }
+        long expires = System.nanoTime() + ttl;
+        objects.put(key, new CacheEntry(values, expires));
+        lookups.put(query, new CacheEntry(key, expires));
+    }
+
+    /**
+     * Removes the object with the keys, and every query result because the
+     * change can make a query find another object.
+     */
+    /* package */ synchronized void evict(EntityKey key) {
+        generation++;
+        objects.remove(key);
+        lookups.clear();
+    }
+
+    /* package */ synchronized void clear() {
+        generation++;
+        objects.clear();
+        lookups.clear();
+        if (BaseObject.debugging) {
+            BaseObject.log.log(Level.FINEST, "EntityCache<{0}>.clear()", className);
+        }
+    }
+
+    private <K> CacheEntry fresh(Map<K, CacheEntry> map, K key) {
+        CacheEntry entry = map.get(key);
+        if (entry != null && entry.expires - System.nanoTime() < 0) {
+            map.remove(key);
+            evictions.incrementAndGet();
+            return null;
+        }
+        return entry;
+    }
+
+    private static final class CacheEntry {
+
+        private final Object value;
+        private final long expires;
+
+        private CacheEntry(Object value, long expires) {
+            this.value = value;
+            this.expires = expires;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2013 Nick Hecht chilliwebs@gmail.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.chilliwebs.ezjdo;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+
+/**
+ * Identifies a database row by its class and key values.
+ *
+ * <p>Drivers do not always hand back keys in the type of the attribute (an
+ * Integer id can come back as a Long or a BigDecimal), so the key values are
+ * compared by their canonical string form instead of equals().
+ *
+ * @author Nick Hecht chilliwebs@gmail.com
+ */
+/* package */ final class EntityKey {
+
+    private static final char SEPARATOR = '\u001f';
+    private final String className;
+    private final String canonical;
+
+    /* package */ EntityKey(String className, Object... values) {
+        this.className = className;
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                sb.append(SEPARATOR);
+            }
+            sb.append(canonical(values[i]));
+        }
+        this.canonical = sb.toString();
+    }
+
+    private EntityKey(String className, String canonical, boolean unused) {
+        this.className = className;
+        this.canonical = canonical;
+    }
+
+    /**
+     * Builds the key again from the string of getCanonical().
+     */
+    /* package */ static EntityKey valueOf(String className, String canonical) {
+        return new EntityKey(className, canonical, true);
+    }
+
+    /* package */ String getClassName() {
+        return className;
+    }
+
+    /* package */ String getCanonical() {
+        return canonical;
+    }
+
+    /* package */ static String canonical(Object value) {
+        if (value == null) {
+            return "\u0000";
+        } else if (value instanceof Number) {
+            try {
+                BigDecimal decimal = new BigDecimal(value.toString());
+                return decimal.signum() == 0 ? "0" : decimal.stripTrailingZeros().toPlainString();
+            } catch (NumberFormatException ex) {
+                return value.toString();
+            }
+        } else if (value instanceof byte[]) {
+            return Arrays.toString((byte[]) value);
+        }
+        return value.toString();
+    }
+
+    /* package */ static boolean sameValue(Object a, Object b) {
+        if (a == null || b == null) {
+            return a == b;
+        }
+        return a.equals(b) || canonical(a).equals(canonical(b));
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof EntityKey)) {
+            return false;
+        }
+        return className.equals(((EntityKey) obj).className) && canonical.equals(((EntityKey) obj).canonical);
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = 7;
+        hash = 31 * hash + className.hashCode();
+        hash = 31 * hash + canonical.hashCode();
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return className + "[" + canonical.replace(SEPARATOR, ',') + "]";
+    }
+}
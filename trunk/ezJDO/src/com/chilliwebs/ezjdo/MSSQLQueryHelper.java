@@ -16,103 +16,198 @@
 package com.chilliwebs.ezjdo;
 
 import com.chilliwebs.ezjdo.exceptions.ezJDOException;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
 
 /**
  * @author Nick Hecht chilliwebs@gmail.com
  */
 /* package */ class MSSQLQueryHelper implements SQLQueryHelper {
 
+    private static final int OFFSET_FETCH_VERSION = 11; // SQL Server 2012
+    /* package */ static final String ROW_COLUMN = "ezjdo_row";
+    private static final int PASS_THROUGH = 0, OFFSET_FETCH = 1, ROW_NUMBER = 2, NOT_IN = 3, SEEK = 4;
+    private final Map<String, SQLTemplate> templates = Collections.synchronizedMap(new LRUCache<String, SQLTemplate>(SQLTemplate.CACHE_SIZE));
+
     @Override
-    public <T> Results<T> createPagedResults(Class<T> clazz, String originalSQL, Object[] originalValues, Integer pageNumber, Integer itemsPerPage) throws ezJDOException {
+    public <T> Results<T> createPagedResults(Results<T> originalResults, Integer pageNumber, Integer itemsPerPage) throws ezJDOException {
+        Class<T> clazz = originalResults.clazz;
+        Object[] originalValues = originalResults.originalValues;
+        int version = BaseObject.getDatabaseMajorVersion(originalResults.sourceTableIndex);
+        // the forms that put the page size or offset in the statement are cached for each page shape
+        String kind = version >= OFFSET_FETCH_VERSION ? "page" : pageNumber == 1 ? "top:" + itemsPerPage : "page:" + itemsPerPage + ":" + pageNumber;
+        String key = SQLTemplate.key(kind, clazz, version, originalResults.originalSQL);
+        SQLTemplate template = templates.get(key);
+        if (template == null) {
+            template = createPagedTemplate(clazz, version, originalResults.originalSQL, pageNumber, itemsPerPage);
+            templates.put(key, template);
+        }
+        switch (template.strategy) {
+            case OFFSET_FETCH:
+                return template.createResults(clazz, appendValues(originalValues, (pageNumber - 1) * itemsPerPage, itemsPerPage));
+            case ROW_NUMBER:
+                return template.createResults(clazz, appendValues(originalValues, ((pageNumber - 1) * itemsPerPage) + 1, pageNumber * itemsPerPage));
+            case NOT_IN:
+                // the conditions are in the statement twice
+                return template.createResults(clazz, appendValues(originalValues, originalValues));
+            default:
+                return template.createResults(clazz, originalValues);
+        }
+    }
+
+    private SQLTemplate createPagedTemplate(Class<?> clazz, int version, String originalSQL, Integer pageNumber, Integer itemsPerPage) throws ezJDOException {
+        SQLStatement statement = SQLStatement.parse(originalSQL);
+        if (!statement.isSimpleSelect() || statement.getTail() != null) {
+            return new SQLTemplate(originalSQL, PASS_THROUGH, null, null, null);
+        }
+        if (statement.getGroupBy() != null) {
+            throw new com.chilliwebs.ezjdo.exceptions.ezJDOException("You cannot page querys with \"group by\" statments.");
+        }
+        if (statement.hasTop()) {
+            throw new ezJDOException("You cannot page querys with a \"top\" statment.");
+        }
         String[] tableKeys = BaseObject.getTableKeys(BaseObject.getClassTableName(clazz.getName()));
-        Object[] newValues;
-        if (pageNumber == 1) {
-            newValues = originalValues;
+        if (statement.getOrderBy() == null && tableKeys.length < 1) {
+            throw new ezJDOException("You cannot page querys without an \"order by\" statment on classes without keys.");
+        }
+        String fields = statement.getSelect();
+        String table = statement.getFrom();
+        String where = statement.getWhere();
+        String order = statement.getOrderBy() == null ? "" : " ORDER BY " + statement.getOrderBy();
+        String orderBy = statement.getOrderBy() == null ? " ORDER BY " + BaseObject.join(tableKeys, ", ") : order;
+        String whereClause = where == null ? "" : " WHERE (" + where + ")";
+        // the total can come with the page when the window covers the whole query, extra columns are ignored for objects
+        boolean objects = BaseObject.class.isAssignableFrom(clazz) && !statement.isDistinct();
+        String total = objects ? ", COUNT(*) OVER() AS " + Results.TOTAL_COLUMN : "";
+        String totalColumn = objects ? Results.TOTAL_COLUMN : null;
+        if (version >= OFFSET_FETCH_VERSION) {
+            // 2012 and newer, the server skips the rows itself
+            if (statement.isDistinct() && statement.getOrderBy() == null && !selectsColumns(fields, tableKeys)) {
+                throw new ezJDOException("You cannot page \"distinct\" querys without an \"order by\" statment unless they select the keys (" + BaseObject.join(tableKeys, ", ") + ").");
+            }
+            return new SQLTemplate("SELECT " + fields + total + " FROM " + table + whereClause + orderBy + " OFFSET ? ROWS FETCH NEXT ? ROWS ONLY", OFFSET_FETCH, null, totalColumn, null);
+        } else if (pageNumber == 1) {
+            return new SQLTemplate("SELECT TOP " + itemsPerPage + " " + fields + total + " FROM " + table + whereClause + order, PASS_THROUGH, null, totalColumn, null);
+        } else if (objects) {
+            // 2005 and newer, number the rows and pick the page, the row number column is ignored for objects
+            return new SQLTemplate("SELECT * FROM (SELECT " + fields + ", ROW_NUMBER() OVER (" + orderBy.trim() + ") AS " + ROW_COLUMN + total + " FROM " + table + whereClause + ") ezpage WHERE " + ROW_COLUMN + " BETWEEN ? AND ? ORDER BY " + ROW_COLUMN, ROW_NUMBER, null, totalColumn, null);
+        }
+        //SELECT TOP 5 * FROM ADM50_NOD_HELPA_MU WHERE ISN = '46' AND (CONVERT(varchar(5), ISN) + ' ' + CONVERT(varchar(5), MU$ORDER)) NOT IN (SELECT top 5 (CONVERT(varchar(5), ISN) + ' ' + CONVERT(varchar(5), MU$ORDER)) AS compare FROM ADM50_NOD_HELPA_MU WHERE ISN = '46')
+        if (tableKeys.length < 1) {
+            throw new ezJDOException("You cannot page querys on classes without keys before SQL Server 2005.");
+        }
+        String compare = "";
+        if (tableKeys.length > 1) {
+            compare = "(";
+            for (int i = 0; i < tableKeys.length; i++) {
+                compare += "CONVERT(varchar, " + tableKeys[i] + ")" + (((i + 1) < tableKeys.length) ? " + ' ' + " : "");
+            }
+            compare += ")";
         } else {
-            if (originalValues.length > 0) {
-                newValues = new Object[originalValues.length * 2];
-                System.arraycopy(originalValues, 0, newValues, 0, originalValues.length);
-                System.arraycopy(originalValues, 0, newValues, originalValues.length, originalValues.length);
-            } else {
-                newValues = originalValues;
+            compare = tableKeys[0];
+        }
+        String newSQL = "SELECT TOP " + itemsPerPage + " " + fields + " FROM " + table + " WHERE " + MySQLQueryHelper.addCondition(where, compare) + " NOT IN ( SELECT TOP " + ((pageNumber - 1) * itemsPerPage) + " " + compare + " FROM " + table + whereClause + order + " )" + order;
+        return new SQLTemplate(newSQL, NOT_IN, null, null, null);
+    }
+
+    @Override
+    public <T> Results<T> createKeysetResults(Results<T> originalResults, Object[] lastValues, Integer itemsPerPage) throws ezJDOException {
+        Class<T> clazz = originalResults.clazz;
+        boolean seek = lastValues != null && lastValues.length > 0;
+        String key = SQLTemplate.key((seek ? "seek:" : "first:") + itemsPerPage, clazz, 0, originalResults.originalSQL);
+        SQLTemplate template = templates.get(key);
+        if (template == null) {
+            template = createKeysetTemplate(clazz, originalResults.originalSQL, seek, itemsPerPage);
+            templates.put(key, template);
+        }
+        ArrayList<Object> newValues = new ArrayList<Object>(Arrays.asList(originalResults.originalValues));
+        if (seek) {
+            if (lastValues.length != template.columns.length) {
+                throw new ezJDOException("You must pass one seek value for each of the seek columns (" + BaseObject.join(template.columns, ", ") + ").");
+            }
+            // the same order as the placeholders of the expanded condition
+            for (int i = 0; i < lastValues.length; i++) {
+                newValues.addAll(Arrays.asList(lastValues).subList(0, i + 1));
             }
         }
-        String tmpSQL = (" " + originalSQL.replaceAll(";", " ") + " ").toLowerCase();
-        Pattern pattern = Pattern.compile("([\\s;]+select\\s)", Pattern.CASE_INSENSITIVE);
-        Matcher matcher = pattern.matcher(tmpSQL);
-        int selectCount;
-        for (selectCount = 0; matcher.find(); selectCount++);
-        if (selectCount == 1 && !(tmpSQL.contains(" update ") || tmpSQL.contains(" insert ") || tmpSQL.contains(" delete "))) {
-            tmpSQL = originalSQL.toLowerCase();
-            int sel = tmpSQL.indexOf("select");
-            int frm = tmpSQL.lastIndexOf("from");
-            int whr = tmpSQL.lastIndexOf("where");
-            int grp = tmpSQL.lastIndexOf("group by");
-            int ord = tmpSQL.lastIndexOf("order by");
-            if (sel >= 0 && frm > sel) {
-                tmpSQL = originalSQL;
-                // break statment apart
-                String order = "";
-                if (ord > 0) {
-                    order = tmpSQL.substring(ord).replace(";", "").trim();
-                    tmpSQL = tmpSQL.substring(0, ord).trim();
-                }
-                String[] order_feilds = new String[0];
-                if (!order.trim().isEmpty()) {
-                    String order_feilds_str = "";
-                    order_feilds_str = order.replaceAll("\\s[aA|dD][eE]?[sS][cC]", "").replaceAll("[oO][rR][dD][eE][rR]\\s+[bB][yY]\\s", "");
-                    order_feilds = order_feilds_str.split(",");
-                }
-                if (order_feilds.length < 1) {
-                    if (tableKeys.length < 1) {
-                        order_feilds = new String[]{"id"};
-                    } else {
-                        order_feilds = tableKeys;
-                    }
-                }
-                String group = "";
-                if (grp > 0) {
-                    group = tmpSQL.substring(grp).replace(";", "").trim();
-                    tmpSQL = tmpSQL.substring(0, grp).trim();
-                }
-                String where = "";
-                if (whr > 0) {
-                    where = tmpSQL.substring(whr + 5).replace(";", "").trim();
-                    tmpSQL = tmpSQL.substring(0, whr).trim();
-                }
-                String table = "";
-                if (frm > 0) {
-                    table = tmpSQL.substring(frm + 4).replace(";", "").trim();
-                    tmpSQL = tmpSQL.substring(0, frm).trim();
-                }
-                String fields = tmpSQL.substring(sel + 6).trim();
-                if (group.trim().isEmpty()) {
-                    String newSQL = "";
-                    if (pageNumber == 1) {
-                        newSQL = "SELECT TOP " + itemsPerPage + " " + fields + " FROM " + table + (("".equals(where)) ? "" : " WHERE (" + where + ")") + (("".equals(order)) ? "" : " " + order);
-                    } else {
-                        //SELECT TOP 5 * FROM ADM50_NOD_HELPA_MU WHERE ISN = '46' AND (CONVERT(varchar(5), ISN) + ' ' + CONVERT(varchar(5), MU$ORDER)) NOT IN (SELECT top 5 (CONVERT(varchar(5), ISN) + ' ' + CONVERT(varchar(5), MU$ORDER)) AS compare FROM ADM50_NOD_HELPA_MU WHERE ISN = '46')
-                        String compare = "";
-                        if (tableKeys.length > 1) {
-                            compare = "(";
-                            for (int i = 0; i < tableKeys.length; i++) {
-                                compare += "CONVERT(varchar, " + tableKeys[i] + ")" + (((i + 1) < tableKeys.length) ? " + ' ' + " : "");
-                            }
-                            compare += ")";
-                        } else {
-                            compare = tableKeys[0];
-                        }
+        return template.createResults(clazz, newValues.toArray());
+    }
 
-                        newSQL = "SELECT TOP " + itemsPerPage + " " + fields + " FROM " + table + " WHERE " + (("".equals(where)) ? "" : "(" + where + ") AND ") + compare + " NOT IN ( SELECT TOP " + ((pageNumber - 1) * itemsPerPage) + " " + compare + " FROM " + table + " WHERE " + (("".equals(where)) ? "" : where) + (("".equals(order)) ? "" : " " + order) + " ) " + (("".equals(order)) ? "" : " " + order);
-                    }
-                    return BaseObject.sql(clazz, newSQL, newValues);
-                } else {
-                    throw new com.chilliwebs.ezjdo.exceptions.ezJDOException("You cannot page querys with \"group by\" statments.");
-                }
+    private SQLTemplate createKeysetTemplate(Class<?> clazz, String originalSQL, boolean seek, Integer itemsPerPage) throws ezJDOException {
+        SQLStatement statement = SQLStatement.parse(originalSQL);
+        if (!statement.isSimpleSelect() || statement.getTail() != null) {
+            throw new ezJDOException("You can only seek simple select querys.");
+        }
+        if (statement.getGroupBy() != null || statement.getHaving() != null) {
+            throw new ezJDOException("You cannot seek querys with \"group by\" statments.");
+        }
+        if (statement.hasTop()) {
+            throw new ezJDOException("You cannot seek querys with a \"top\" statment.");
+        }
+        String[] columns = MySQLQueryHelper.getSeekColumns(clazz, statement);
+        String where = seek ? MySQLQueryHelper.addCondition(statement.getWhere(), createSeekCondition(columns)) : statement.getWhere();
+        String newSQL = statement.rebuild("TOP " + itemsPerPage + " " + statement.getSelect(), where) + " ORDER BY " + BaseObject.join(columns, ", ");
+        return new SQLTemplate(newSQL, SEEK, columns, null, null);
+    }
+
+    /**
+     * Identifies a distinct select list that has the columns, or a * that has
+     * all of them, so they can be used in the order by.
+     */
+    private static boolean selectsColumns(String fields, String[] columns) {
+        ArrayList<String> selected = new ArrayList<String>();
+        for (String item : SQLStatement.splitList(fields.trim().substring(8))) {
+            String name = item.toLowerCase();
+            if (name.equals("*") || name.endsWith(".*")) {
+                return true;
             }
+            // the alias, or the column without its table
+            int space = Math.max(name.lastIndexOf(' '), name.lastIndexOf('.'));
+            selected.add(unquote(name.substring(space + 1)));
+        }
+        for (String column : columns) {
+            if (!selected.contains(unquote(column.toLowerCase()))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String unquote(String name) {
+        if (name.length() > 1 && (name.charAt(0) == '[' || name.charAt(0) == '"')) {
+            return name.substring(1, name.length() - 1);
         }
-        return BaseObject.sql(clazz, originalSQL, originalValues);
+        return name;
+    }
+
+    private String createSeekCondition(String[] columns) {
+        // no row value comparison, so (a, b) > (?, ?) becomes a > ? OR (a = ? AND b > ?)
+        StringBuilder seek = new StringBuilder("(");
+        for (int i = 0; i < columns.length; i++) {
+            seek.append(i > 0 ? " OR (" : "(");
+            for (int n = 0; n < i; n++) {
+                seek.append(columns[n]).append(" = ? AND ");
+            }
+            seek.append(columns[i]).append(" > ?)");
+        }
+        return seek.append(")").toString();
+    }
+
+    private Object[] appendValues(Object[] originalValues, Object... values) {
+        Object[] newValues = new Object[originalValues.length + values.length];
+        System.arraycopy(originalValues, 0, newValues, 0, originalValues.length);
+        System.arraycopy(values, 0, newValues, originalValues.length, values.length);
+        return newValues;
+    }
+
+    @Override
+    public void configureStreaming(Statement statement, int fetchSize) throws SQLException {
+        // the driver streams with adaptive response buffering, the fetch size
+        // limits how many rows are buffered for each round trip
+        statement.setFetchSize(fetchSize);
     }
 }
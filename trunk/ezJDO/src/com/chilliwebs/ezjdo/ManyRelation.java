@@ -0,0 +1,124 @@
+/*
+ * Copyright 2013 Nick Hecht chilliwebs@gmail.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.chilliwebs.ezjdo;
+
+import com.chilliwebs.ezjdo.exceptions.ezJDOException;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map.Entry;
+
+/**
+ * The "many" objects of a parent that are only found when the list is first
+ * used. The loaded objects are kept on the parent, so every holder of the same
+ * parent and class shares them and getMany() returns them without a query.
+ *
+ * <p>Holders of many parents can be loaded together with loadAll(), which
+ * runs one query for each chunk of parents instead of one for each parent.</p>
+ *
+ * @author Nick Hecht chilliwebs@gmail.com
+ */
+public class ManyRelation<T extends BaseObject> extends AbstractList<T> {
+
+    private final BaseObject parent;
+    private final Class<T> clazz;
+
+    /* package */ ManyRelation(BaseObject parent, Class<T> clazz) {
+        this.parent = parent;
+        this.clazz = clazz;
+    }
+
+    /**
+     * Loads the holders that are not loaded yet, the holders of each class of
+     * many objects are loaded with one loadMany() call.
+     *
+     * @param relations the holders to load.
+     * @throws ezJDOException
+     */
+    public static void loadAll(Collection<? extends ManyRelation<?>> relations) throws ezJDOException {
+        LinkedHashMap<Class<?>, ArrayList<BaseObject>> classParents = new LinkedHashMap<Class<?>, ArrayList<BaseObject>>();
+        for (ManyRelation<?> relation : relations) {
+            if (relation.isLoaded()) {
+                continue;
+            }
+            ArrayList<BaseObject> parents = classParents.get(relation.clazz);
+            if (parents == null) {
+                parents = new ArrayList<BaseObject>();
+                classParents.put(relation.clazz, parents);
+            }
+            parents.add(relation.parent);
+        }
+        for (Entry<Class<?>, ArrayList<BaseObject>> entry : classParents.entrySet()) {
+            if (entry.getValue().size() == 1) {
+                // a single parent is cheaper with the plain query
+                entry.getValue().get(0).getMany(entry.getKey().asSubclass(BaseObject.class));
+            } else {
+                BaseObject.loadMany(entry.getValue(), entry.getKey().asSubclass(BaseObject.class));
+            }
+        }
+    }
+
+    /**
+     * Returns true when the many objects are already on the parent.
+     */
+    public boolean isLoaded() {
+        return parent.getFetchedMany(clazz) != null;
+    }
+
+    /**
+     * Returns the many objects, they are found on the first call.
+     *
+     * @throws ezJDOException
+     */
+    public ResultList<T> load() throws ezJDOException {
+        return parent.getMany(clazz);
+    }
+
+    private List<T> loaded() {
+        try {
+            return load();
+        } catch (ezJDOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    @Override
+    public T get(int index) {
+        return loaded().get(index);
+    }
+
+    @Override
+    public int size() {
+        return loaded().size();
+    }
+
+    @Override
+    public T set(int index, T element) {
+        return loaded().set(index, element);
+    }
+
+    @Override
+    public void add(int index, T element) {
+        loaded().add(index, element);
+    }
+
+    @Override
+    public T remove(int index) {
+        return loaded().remove(index);
+    }
+}
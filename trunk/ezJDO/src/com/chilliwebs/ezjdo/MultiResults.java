@@ -0,0 +1,161 @@
+/*
+ * Copyright 2013 Nick Hecht chilliwebs@gmail.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.chilliwebs.ezjdo;
+
+import com.chilliwebs.ezjdo.exceptions.ezJDOException;
+import java.io.Closeable;
+import java.sql.CallableStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.logging.Level;
+
+/**
+ * The results of a stored procedure that returns several result sets. The
+ * procedure runs once, then every result set is read in order as its own
+ * Results with its own type, for example:
+ * <blockquote><pre>
+ * MultiResults report = execAll("monthly_report(?)", month);
+ * Results&lt;Document&gt; documents = report.next(Document.class);
+ * for (Document document : documents) { ... }
+ * Results&lt;Object[]&gt; totals = report.next(Object[].class);
+ * report.close();
+ * </pre></blockquote>
+ *
+ * <p>Moving to the next result set closes the previous one, so read each
+ * Results before asking for the next. Update counts returned between the
+ * result sets are collected as they are passed.</p>
+ *
+ * @author Nick Hecht chilliwebs@gmail.com
+ */
+public class MultiResults implements Closeable {
+
+    private final CallableStatement statement;
+    private final String sql;
+    private final int sourceTableIndex;
+    private final ArrayList<Integer> updateCounts = new ArrayList<Integer>();
+    private boolean executed = false;
+    private boolean pending = false; // a result set is waiting to be handed out
+    private boolean finished = false;
+
+    /* package */ MultiResults(CallableStatement statement, String sql, int sourceTableIndex) {
+        this.statement = statement;
+        this.sql = sql;
+        this.sourceTableIndex = sourceTableIndex;
+    }
+
+    private void advance() throws ezJDOException {
+        if (pending || finished) {
+            return;
+        }
+        try {
+            boolean isResultSet;
+            if (!executed) {
+                executed = true;
+                if (BaseObject.debugging) {
+                    BaseObject.log.log(Level.INFO, sql);
+                }
+                isResultSet = statement.execute();
+                BaseObject.invalidateWrites(null); // the procedure can write to any table
+            } else {
+                isResultSet = statement.getMoreResults();
+            }
+            while (!isResultSet) {
+                int count = statement.getUpdateCount();
+                if (count == -1) {
+                    finished = true;
+                    statement.close();
+                    return;
+                }
+                updateCounts.add(count);
+                isResultSet = statement.getMoreResults();
+            }
+            pending = true;
+        } catch (SQLException ex) {
+            throw new ezJDOException("The database threw and error while trying to fetch more results. Please check your database connection.", ex);
+        }
+    }
+
+    /**
+     * Returns the next result set of the procedure as results of the class.
+     *
+     * @param <T> generic type that you want to return.
+     * @param clazz the class for the objects of this result set.
+     * @return the results, or null if there are no more result sets.
+     * @throws ezJDOException
+     */
+    public <T> Results<T> next(Class<T> clazz) throws ezJDOException {
+        advance();
+        if (!pending) {
+            return null;
+        }
+        pending = false;
+        try {
+            return new Results<T>(clazz, statement.getResultSet(), sourceTableIndex);
+        } catch (SQLException ex) {
+            throw new ezJDOException("The database threw and error while trying to fetch more results. Please check your database connection.", ex);
+        }
+    }
+
+    /**
+     * Checks if there is another result set, update counts before it are
+     * collected.
+     *
+     * @return true if next() will return results.
+     * @throws ezJDOException
+     */
+    public boolean hasNext() throws ezJDOException {
+        advance();
+        return pending;
+    }
+
+    /**
+     * @return the update counts passed so far, in order.
+     */
+    public int[] getUpdateCounts() {
+        int[] counts = new int[updateCounts.size()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = updateCounts.get(i);
+        }
+        return counts;
+    }
+
+    /**
+     * @return the sum of the update counts passed so far.
+     */
+    public int getUpdateCount() {
+        int count = 0;
+        for (Integer updateCount : updateCounts) {
+            count += updateCount;
+        }
+        return count;
+    }
+
+    /**
+     * Closes the statement and any result set that was not read.
+     */
+    @Override
+    public void close() {
+        finished = true;
+        pending = false;
+        try {
+            if (!statement.isClosed()) {
+                statement.close();
+            }
+        } catch (SQLException ex) {
+            BaseObject.log.log(Level.FINEST, "could not close the procedure statement", ex);
+        }
+    }
+}
@@ -16,45 +16,154 @@
 package com.chilliwebs.ezjdo;
 
 import com.chilliwebs.ezjdo.exceptions.ezJDOException;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
 
 /**
  * @author Nick Hecht chilliwebs@gmail.com
  */
 /* package */ class MySQLQueryHelper implements SQLQueryHelper {
 
+    private static final int PASS_THROUGH = 0, LIMIT = 1, SEEK = 2;
+    private final Map<String, SQLTemplate> templates = Collections.synchronizedMap(new LRUCache<String, SQLTemplate>(SQLTemplate.CACHE_SIZE));
+
     @Override
-    public <T> Results<T> createPagedResults(Class<T> clazz, String originalSQL, Object[] originalValues, Integer pageNumber, Integer itemsPerPage) throws ezJDOException {
-        String tmpSQL = (" " + originalSQL.replaceAll(";", " ") + " ").toLowerCase();
-        Pattern pattern = Pattern.compile("([\\s;]+select\\s)", Pattern.CASE_INSENSITIVE);
-        Matcher matcher = pattern.matcher(tmpSQL);
-        int selectCount;
-        for (selectCount = 0; matcher.find(); selectCount++);
-        if (selectCount == 1 && !(tmpSQL.contains(" update ") || tmpSQL.contains(" insert ") || tmpSQL.contains(" delete "))) {
-            tmpSQL = originalSQL.toLowerCase();
-            int sel = tmpSQL.indexOf("select");
-            int frm = tmpSQL.lastIndexOf("from");
-            int grp = tmpSQL.lastIndexOf("group by");
-            int ord = tmpSQL.lastIndexOf("order by");
-            if (sel >= 0 && frm > sel) {
-                tmpSQL = originalSQL;
-                // break statment apart
-                if (ord > 0) {
-                    tmpSQL = tmpSQL.substring(0, ord).trim();
-                }
-                String group = "";
-                if (grp > 0) {
-                    group = tmpSQL.substring(grp).replace(";", "").trim();
-                }
-                if (group.trim().isEmpty()) {
-                    String newSQL = originalSQL + " LIMIT " + ((pageNumber - 1) * itemsPerPage) + "," + itemsPerPage;
-                    return BaseObject.sql(clazz, newSQL, originalValues);
-                } else {
-                    throw new com.chilliwebs.ezjdo.exceptions.ezJDOException("You cannot page querys with \"group by\" statments.");
+    public <T> Results<T> createPagedResults(Results<T> originalResults, Integer pageNumber, Integer itemsPerPage) throws ezJDOException {
+        Class<T> clazz = originalResults.clazz;
+        Object[] originalValues = originalResults.originalValues;
+        int version = BaseObject.getDatabaseMajorVersion(originalResults.sourceTableIndex);
+        String key = SQLTemplate.key("page", clazz, version, originalResults.originalSQL);
+        SQLTemplate template = templates.get(key);
+        if (template == null) {
+            template = createPagedTemplate(clazz, version, originalResults.originalSQL);
+            templates.put(key, template);
+        }
+        if (template.strategy == PASS_THROUGH) {
+            return template.createResults(clazz, originalValues);
+        }
+        Object[] newValues = new Object[originalValues.length + 2];
+        System.arraycopy(originalValues, 0, newValues, 0, originalValues.length);
+        newValues[originalValues.length] = (pageNumber - 1) * itemsPerPage;
+        newValues[originalValues.length + 1] = itemsPerPage;
+        return template.createResults(clazz, newValues);
+    }
+
+    private SQLTemplate createPagedTemplate(Class<?> clazz, int version, String originalSQL) throws ezJDOException {
+        SQLStatement statement = SQLStatement.parse(originalSQL);
+        if (!statement.isSimpleSelect() || statement.getTail() != null) {
+            return new SQLTemplate(originalSQL, PASS_THROUGH, null, null, null);
+        }
+        if (statement.getGroupBy() != null) {
+            throw new com.chilliwebs.ezjdo.exceptions.ezJDOException("You cannot page querys with \"group by\" statments.");
+        }
+        // fetch the total with the page when the rows are objects, extra columns are ignored for those
+        boolean countTotal = BaseObject.class.isAssignableFrom(clazz) && !statement.isDistinct();
+        String order = statement.getOrderBy() == null ? "" : " ORDER BY " + statement.getOrderBy();
+        if (countTotal && version >= 8) {
+            String newSQL = statement.rebuild(statement.getSelect() + ", COUNT(*) OVER() AS " + Results.TOTAL_COLUMN, statement.getWhere()) + order + " LIMIT ?, ?";
+            return new SQLTemplate(newSQL, LIMIT, null, Results.TOTAL_COLUMN, null);
+        } else if (countTotal) {
+            String newSQL = statement.rebuild("SQL_CALC_FOUND_ROWS " + statement.getSelect(), statement.getWhere()) + order + " LIMIT ?, ?";
+            return new SQLTemplate(newSQL, LIMIT, null, null, "SELECT FOUND_ROWS()");
+        }
+        return new SQLTemplate(statement.getUnordered() + order + " LIMIT ?, ?", LIMIT, null, null, null);
+    }
+
+    @Override
+    public <T> Results<T> createKeysetResults(Results<T> originalResults, Object[] lastValues, Integer itemsPerPage) throws ezJDOException {
+        Class<T> clazz = originalResults.clazz;
+        Object[] originalValues = originalResults.originalValues;
+        boolean seek = lastValues != null && lastValues.length > 0;
+        String key = SQLTemplate.key(seek ? "seek" : "first", clazz, 0, originalResults.originalSQL);
+        SQLTemplate template = templates.get(key);
+        if (template == null) {
+            template = createKeysetTemplate(clazz, originalResults.originalSQL, seek);
+            templates.put(key, template);
+        }
+        ArrayList<Object> newValues = new ArrayList<Object>(Arrays.asList(originalValues));
+        if (seek) {
+            if (lastValues.length != template.columns.length) {
+                throw new ezJDOException("You must pass one seek value for each of the seek columns (" + BaseObject.join(template.columns, ", ") + ").");
+            }
+            newValues.addAll(Arrays.asList(lastValues));
+        }
+        newValues.add(itemsPerPage);
+        return template.createResults(clazz, newValues.toArray());
+    }
+
+    private SQLTemplate createKeysetTemplate(Class<?> clazz, String originalSQL, boolean seek) throws ezJDOException {
+        SQLStatement statement = SQLStatement.parse(originalSQL);
+        if (!statement.isSimpleSelect() || statement.getTail() != null) {
+            throw new ezJDOException("You can only seek simple select querys.");
+        }
+        if (statement.getGroupBy() != null || statement.getHaving() != null) {
+            throw new ezJDOException("You cannot seek querys with \"group by\" statments.");
+        }
+        String[] columns = getSeekColumns(clazz, statement);
+        String base = statement.getUnordered();
+        if (seek) {
+            base = statement.rebuild(statement.getSelect(), addCondition(statement.getWhere(), createSeekCondition(columns)));
+        }
+        return new SQLTemplate(base + " ORDER BY " + BaseObject.join(columns, ", ") + " LIMIT ?", SEEK, columns, null, null);
+    }
+
+    /**
+     * The order by columns are the seek columns, the keys are used if there
+     * is no order.
+     */
+    /* package */ static String[] getSeekColumns(Class<?> clazz, SQLStatement statement) throws ezJDOException {
+        String[] columns;
+        if (statement.getOrderBy() != null) {
+            columns = SQLStatement.splitList(statement.getOrderBy());
+            for (int i = 0; i < columns.length; i++) {
+                if (columns[i].toLowerCase().endsWith(" desc")) {
+                    throw new ezJDOException("You can only seek querys ordered ascending.");
+                } else if (columns[i].toLowerCase().endsWith(" asc")) {
+                    columns[i] = columns[i].substring(0, columns[i].length() - 4).trim();
                 }
             }
+        } else {
+            columns = BaseObject.getTableKeys(BaseObject.getClassTableName(clazz.getName()));
+            if (columns.length < 1) {
+                throw new ezJDOException("You cannot seek querys without an \"order by\" statment on classes without keys.");
+            }
+        }
+        return columns;
+    }
+
+    /**
+     * Adds a condition to a where clause that can be null.
+     */
+    /* package */ static String addCondition(String where, String condition) {
+        return where == null ? condition : "(" + where + ") AND " + condition;
+    }
+
+    private String createSeekCondition(String[] columns) {
+        if (columns.length == 1) {
+            return columns[0] + " > ?";
+        }
+        StringBuilder left = new StringBuilder();
+        StringBuilder right = new StringBuilder();
+        for (int i = 0; i < columns.length; i++) {
+            left.append(i > 0 ? ", " : "").append(columns[i]);
+            right.append(i > 0 ? ", ?" : "?");
+        }
+        return "(" + left + ") > (" + right + ")";
+    }
+
+    @Override
+    public void configureStreaming(Statement statement, int fetchSize) throws SQLException {
+        // Connector/J only streams row by row with a fetch size of Integer.MIN_VALUE,
+        // unless cursor based fetching was turned on in the connection string
+        String url = statement.getConnection().getMetaData().getURL();
+        if (url != null && url.toLowerCase().contains("usecursorfetch=true")) {
+            statement.setFetchSize(fetchSize);
+        } else {
+            statement.setFetchSize(Integer.MIN_VALUE);
         }
-        return BaseObject.sql(clazz, originalSQL, originalValues);
     }
 }
@@ -0,0 +1,227 @@
+/*
+ * Copyright 2013 Nick Hecht chilliwebs@gmail.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.chilliwebs.ezjdo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The shared cache of the rows of select statements that asked for it with
+ * Results.cached(). The rows are kept by the class, the statement with its
+ * whitespace collapsed and the values, as the values the objects were read
+ * with so every hit builds new objects.
+ *
+ * <p>Each entry remembers the tables its statement reads. A write through
+ * ezJDO to one of them removes the entry, a statement where the written
+ * tables are not known (like a stored procedure) empties the cache.</p>
+ *
+ * @author Nick Hecht chilliwebs@gmail.com
+ */
+/* package */ final class QueryCache {
+
+    private static final Pattern SELECT_WORD = Pattern.compile("\\bselect\\b");
+    private static final Pattern TABLE_NAME = Pattern.compile("[\\w$#.\\[\\]`\"]+");
+    /* package */ static final String[] WRITE_KEYWORDS = {"update", "into", "from"};
+    /* package */ static final int MAX_ENTRIES = Integer.getInteger("ezjdo.querycache.entries", 256);
+    /* package */ static final int MAX_ROWS = Integer.getInteger("ezjdo.querycache.rows", 1000); // rows of one entry
+    private static final Map<String, Entry> ENTRIES = Collections.synchronizedMap(new LRUCache<String, Entry>(MAX_ENTRIES));
+    private static long generation = 0; // changes on every invalidation
+
+    private QueryCache() {
+    }
+
+    /* package */ static String key(Class<?> clazz, String sql, Object[] values) {
+        return clazz.getName() + '\u0000' + normalize(sql) + '\u0000' + new EntityKey(clazz.getName(), values).getCanonical();
+    }
+
+    /**
+     * Returns the rows of the statement, or null.
+     */
+    /* package */ static Object[] get(String key) {
+        Entry entry = ENTRIES.get(key);
+        if (BaseObject.debugging) {
+            BaseObject.log.log(Level.FINEST, "query cache {0}", entry == null ? "miss" : "hit");
+        }
+        return entry == null ? null : entry.rows;
+    }
+
+    /* package */ static synchronized long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Keeps the rows of the statement, unless a write was made since the
+     * statement was started at the given generation.
+     */
+    /* package */ static void put(String key, String sql, Object[] rows, long startGeneration) {
+        String[] tables = findReadTables(sql);
+        if (tables.length == 0) {
+            return;
+        }
+        synchronized (QueryCache.class) {
+            if (startGeneration == generation) {
+                ENTRIES.put(key, new Entry(tables, rows));
+            }
+        }
+    }
+
+    /**
+     * Removes the entries that read the table.
+     */
+    /* package */ static void invalidate(String table) {
+        String name = table.toLowerCase();
+        synchronized (QueryCache.class) {
+            generation++;
+            synchronized (ENTRIES) {
+                Iterator<Entry> entries = ENTRIES.values().iterator();
+                while (entries.hasNext()) {
+                    for (String read : entries.next().tables) {
+                        if (read.equals(name)) {
+                            entries.remove();
+                            break;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /* package */ static void clear() {
+        synchronized (QueryCache.class) {
+            generation++;
+            ENTRIES.clear();
+        }
+    }
+
+    /**
+     * Collapses the whitespace outside of quoted text.
+     */
+    private static String normalize(String sql) {
+        StringBuilder sb = new StringBuilder(sql.length());
+        char quote = 0;
+        for (int i = 0; i < sql.length(); i++) {
+            char c = sql.charAt(i);
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                }
+                sb.append(c);
+            } else if (c == '\'' || c == '"') {
+                quote = c;
+                sb.append(c);
+            } else if (Character.isWhitespace(c)) {
+                if (sb.length() > 0 && sb.charAt(sb.length() - 1) != ' ') {
+                    sb.append(' ');
+                }
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString().trim();
+    }
+
+    /**
+     * Returns the lower case names of the tables a select reads, without
+     * quotes or a schema. The from clause is split on its commas and the
+     * joins of each item are followed. When the tables cannot be known for
+     * sure, like with a sub query, a derived table, a table hint or a quoted
+     * name with spaces, nothing is returned so the rows are not cached.
+     */
+    /* package */ static String[] findReadTables(String sql) {
+        SQLStatement statement = SQLStatement.parse(sql);
+        if (!statement.isSimpleSelect() || statement.getFrom().indexOf('(') != -1) {
+            return new String[0];
+        }
+        Matcher selects = SELECT_WORD.matcher(normalize(statement.getSQL()).toLowerCase());
+        int count = 0;
+        while (selects.find()) {
+            if (++count > 1) {
+                return new String[0]; // a sub query can read any table
+            }
+        }
+        LinkedHashSet<String> tables = new LinkedHashSet<String>();
+        for (String item : SQLStatement.splitList(statement.getFrom())) {
+            String[] words = item.trim().split("\\s+");
+            if (!addTable(tables, words[0])) {
+                return new String[0];
+            }
+            for (int i = 1; i < words.length; i++) {
+                if ("join".equalsIgnoreCase(words[i]) && (i + 1 >= words.length || !addTable(tables, words[i + 1]))) {
+                    return new String[0];
+                }
+            }
+        }
+        return tables.toArray(new String[0]);
+    }
+
+    private static boolean addTable(LinkedHashSet<String> tables, String word) {
+        if (!TABLE_NAME.matcher(word).matches() || count(word, '"') % 2 != 0 || count(word, '`') % 2 != 0 || count(word, '[') != count(word, ']')) {
+            return false;
+        }
+        String name = word.toLowerCase().replaceAll("[\\[\\]`\"]", "");
+        name = name.substring(name.lastIndexOf('.') + 1);
+        if (name.isEmpty()) {
+            return false;
+        }
+        tables.add(name);
+        return true;
+    }
+
+    private static int count(String word, char c) {
+        int count = 0;
+        for (int i = 0; i < word.length(); i++) {
+            if (word.charAt(i) == c) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the lower case names that follow the keywords, without quotes or
+     * a schema.
+     */
+    /* package */ static String[] findTables(String sql, String[] keywords) {
+        String[] words = normalize(sql).toLowerCase().split("[\\s,()]+");
+        LinkedHashSet<String> tables = new LinkedHashSet<String>();
+        for (int i = 0; i + 1 < words.length; i++) {
+            for (String keyword : keywords) {
+                if (keyword.equals(words[i]) && !words[i + 1].isEmpty() && !"select".equals(words[i + 1])) {
+                    String name = words[i + 1].replaceAll("[\\[\\]`\"]", "");
+                    tables.add(name.substring(name.lastIndexOf('.') + 1));
+                }
+            }
+        }
+        return tables.toArray(new String[0]);
+    }
+
+    private static final class Entry {
+
+        private final String[] tables;
+        private final Object[] rows;
+
+        private Entry(String[] tables, Object[] rows) {
+            this.tables = tables;
+            this.rows = rows;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2013 Nick Hecht chilliwebs@gmail.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.chilliwebs.ezjdo;
+
+/**
+ * A resolved "many" relationship from an owner class to a target class, with
+ * the annotation defaults filled in and the sql built once.
+ *
+ * @author Nick Hecht chilliwebs@gmail.com
+ */
+/* package */ final class RelationPlan {
+
+    /* package */ static final String PARENT_COLUMN = "ezjdo_parent";
+    /* package */ final int ownerKeyIndex; // the owner attribute holding the value
+    /* package */ final int targetTableIndex;
+    /* package */ final String targetTable;
+    /* package */ final String targetKey; // joined to the join table
+    /* package */ final String foreignColumn; // in the target table or the join table
+    /* package */ final String joinTable; // empty without a join table
+    /* package */ final String joinColumn;
+    /* package */ final String fromSQL;
+    /* package */ final String findSQL; // the many objects of one owner
+    /* package */ final String loadSQL; // the many objects of several owners, add the IN list
+
+    /* package */ RelationPlan(int ownerKeyIndex, int targetTableIndex, String targetTable, String targetKey, String foreignColumn, String joinTable, String joinColumn) {
+        this.ownerKeyIndex = ownerKeyIndex;
+        this.targetTableIndex = targetTableIndex;
+        this.targetTable = targetTable;
+        this.targetKey = targetKey;
+        this.foreignColumn = foreignColumn;
+        this.joinTable = joinTable;
+        this.joinColumn = joinColumn;
+        this.fromSQL = " FROM " + targetTable + " T1" + (joinTable.isEmpty() ? "" : " JOIN " + joinTable + " T2 ON T1." + targetKey + " = T2." + joinColumn);
+        this.findSQL = "SELECT T1.*" + fromSQL + " WHERE " + foreignColumn + " = ?";
+        this.loadSQL = "SELECT T1.*, " + getForeignReference() + " AS " + PARENT_COLUMN + fromSQL + " WHERE " + getForeignReference();
+    }
+
+    /**
+     * Returns the join from an owner table with the alias P to the target
+     * table T1, owners without any target rows are kept.
+     */
+    /* package */ String getFetchJoin(String ownerColumn) {
+        if (joinTable.isEmpty()) {
+            return " LEFT JOIN " + targetTable + " T1 ON T1." + foreignColumn + " = P." + ownerColumn;
+        }
+        return " LEFT JOIN (" + joinTable + " T2 JOIN " + targetTable + " T1 ON T1." + targetKey + " = T2." + joinColumn + ") ON T2." + foreignColumn + " = P." + ownerColumn;
+    }
+
+    /**
+     * Returns the foreign column qualified with the table it is in.
+     */
+    /* package */ String getForeignReference() {
+        return (joinTable.isEmpty() ? "T1." : "T2.") + foreignColumn;
+    }
+}
@@ -17,150 +17,242 @@ package com.chilliwebs.ezjdo;
 
 import com.chilliwebs.ezjdo.exceptions.ezJDOException;
 import java.util.*;
+import java.util.logging.Level;
 
 /**
+ * A list over the results that reads the rows in chunks as they are needed.
+ * Getting an index or iterating only reads the rows up to that point. Anything
+ * else, like changing the list or searching it, reads the rest of the rows
+ * first so the full List contract holds. The one exception is size() before
+ * any row is read, see {@link #size()}.
+ *
  * @author Nick Hecht chilliwebs@gmail.com
  */
 public class ResultList<T> implements List<T> {
 
-    private List<T> resultlist;
-    private final Results originalResults;
+    /* package */ static final int CHUNK_SIZE = 100;
+    private final List<T> resultlist;
+    private final Results<T> originalResults;
+    private Iterator<T> source; // null once every row is read
+    private boolean started = false;
 
-    
     public ResultList() {
         originalResults = null;
         resultlist = new ArrayList<T>();
     }
-    
-    /* package */ ResultList(Results originalResults) {
+
+    /* package */ ResultList(Results<T> originalResults) {
         this.originalResults = originalResults;
         resultlist = new ArrayList<T>();
-        Iterator<T> iterator = originalResults.iterator();
-        while (iterator.hasNext()) {
-            resultlist.add(iterator.next());
+    }
+
+    /**
+     * Reads chunks of rows until the index is loaded or the rows run out.
+     */
+    private void fill(int index) {
+        if (originalResults == null) {
+            return;
+        }
+        if (!started) {
+            started = true;
+            source = originalResults.iterator();
+        }
+        while (source != null && resultlist.size() <= index) {
+            for (int i = 0; i < CHUNK_SIZE; i++) {
+                if (!source.hasNext()) {
+                    source = null;
+                    break;
+                }
+                resultlist.add(source.next());
+            }
+        }
+    }
+
+    /**
+     * Reads every remaining row.
+     *
+     * @return this list.
+     */
+    /* package */ ResultList<T> load() {
+        fill(Integer.MAX_VALUE - 1);
+        return this;
+    }
+
+    /**
+     * The rows can be counted without reading them when the results are a
+     * page, or a plain select.
+     */
+    private boolean isCountable() {
+        if (originalResults.pagedResults != null) {
+            return true;
         }
+        return originalResults.clazz != null && BaseObject.class.isAssignableFrom(originalResults.clazz) && originalResults.originalSQL != null && SQLStatement.parse(originalResults.originalSQL).isSimpleSelect();
     }
 
+    /**
+     * Before any row is read the size comes from a count query when the
+     * statement can be counted, so it is an estimate: rows written between the
+     * count and the read are not in it. Once reading has started the rest of
+     * the rows are read and the size is the number of rows in the list, which
+     * always agrees with get() and iterator().
+     */
     @Override
     public int size() {
-        return resultlist.size();
+        if (originalResults != null && !started && isCountable()) {
+            try {
+                return originalResults.size();
+            } catch (ezJDOException ex) {
+                BaseObject.log.log(Level.FINEST, "could not count the results, reading them instead", ex);
+            }
+        }
+        return load().resultlist.size();
     }
 
     public int total() throws ezJDOException {
-        if (originalResults.pagedResults == null || originalResults.originalResults == null) {
+        if (originalResults == null || originalResults.pagedResults == null || originalResults.originalResults == null) {
             return size();
         } else {
             return originalResults.total();
         }
     }
-    
+
     @Override
     public boolean isEmpty() {
+        fill(0);
         return resultlist.isEmpty();
     }
 
     @Override
     public Iterator<T> iterator() {
-        return resultlist.iterator();
+        return new Iterator<T>() {
+            private int cursor = 0;
+            private int last = -1;
+
+            @Override
+            public boolean hasNext() {
+                fill(cursor);
+                return cursor < resultlist.size();
+            }
+
+            @Override
+            public T next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                last = cursor++;
+                return resultlist.get(last);
+            }
+
+            @Override
+            public void remove() {
+                if (last == -1) {
+                    throw new IllegalStateException();
+                }
+                ResultList.this.remove(last);
+                cursor = last;
+                last = -1;
+            }
+        };
     }
 
     @Override
     public boolean contains(Object o) {
-        return resultlist.contains(o);
+        return load().resultlist.contains(o);
     }
 
     @Override
     public Object[] toArray() {
-        return resultlist.toArray();
+        return load().resultlist.toArray();
     }
 
     @Override
     public <A> A[] toArray(A[] a) {
-        return resultlist.toArray(a);
+        return load().resultlist.toArray(a);
     }
 
     @Override
     public boolean add(T e) {
-        return resultlist.add(e);
+        return load().resultlist.add(e);
     }
 
     @Override
     public boolean remove(Object o) {
-        return resultlist.remove(o);
+        return load().resultlist.remove(o);
     }
 
     @Override
     public boolean containsAll(Collection<?> c) {
-        return resultlist.containsAll(c);
+        return load().resultlist.containsAll(c);
     }
 
     @Override
     public boolean addAll(Collection<? extends T> c) {
-        return resultlist.addAll(c);
+        return load().resultlist.addAll(c);
     }
 
     @Override
     public boolean removeAll(Collection<?> c) {
-        return resultlist.removeAll(c);
+        return load().resultlist.removeAll(c);
     }
 
     @Override
     public boolean retainAll(Collection<?> c) {
-        return resultlist.retainAll(c);
+        return load().resultlist.retainAll(c);
     }
 
     @Override
     public void clear() {
-        resultlist.clear();
+        load().resultlist.clear();
     }
 
     @Override
     public boolean addAll(int index, Collection<? extends T> c) {
-        return resultlist.addAll(index, c);
+        return load().resultlist.addAll(index, c);
     }
 
     @Override
     public T get(int index) {
+        fill(index);
         return resultlist.get(index);
     }
 
     @Override
     public T set(int index, T element) {
-        return resultlist.set(index, element);
+        return load().resultlist.set(index, element);
     }
 
     @Override
     public void add(int index, T element) {
-        resultlist.add(index, element);
+        load().resultlist.add(index, element);
     }
 
     @Override
     public T remove(int index) {
-        return resultlist.remove(index);
+        return load().resultlist.remove(index);
     }
 
     @Override
     public int indexOf(Object o) {
-        return resultlist.indexOf(o);
+        return load().resultlist.indexOf(o);
     }
 
     @Override
     public int lastIndexOf(Object o) {
-        return resultlist.lastIndexOf(o);
+        return load().resultlist.lastIndexOf(o);
     }
 
     @Override
     public ListIterator<T> listIterator() {
-        return resultlist.listIterator();
+        return load().resultlist.listIterator();
     }
 
     @Override
     public ListIterator<T> listIterator(int index) {
-        return resultlist.listIterator(index);
+        return load().resultlist.listIterator(index);
     }
 
     @Override
     public List<T> subList(int fromIndex, int toIndex) {
-        return resultlist.subList(fromIndex, toIndex);
+        return load().resultlist.subList(fromIndex, toIndex);
     }
 }
@@ -20,10 +20,25 @@ import com.chilliwebs.ezjdo.exceptions.ezJDOException;
 import java.lang.reflect.Array;
 import java.math.BigDecimal;
 import java.sql.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.regex.Pattern;
 
 /**
  * @author Nick Hecht chilliwebs@gmail.com
@@ -34,6 +49,7 @@ public class Results<T> implements Iterable<T> {
     /* package */ Results<T> pagedResults;
     /* package */ Class<T> clazz;
     /* package */ Statement statement;
+    /* package */ int sourceTableIndex = -1;
     private int updateCount = -1; // if the update count is -1 the count is not ready yet
     private int size = -1; // if the size is -1 the size is not ready yet
     private int tmpUpdateCount = 0;
@@ -44,6 +60,29 @@ public class Results<T> implements Iterable<T> {
     /* package */ String originalSQL;
     /* package */ Object[] originalValues;
     /* package */ Object[] values;
+    /* package */ static final String TOTAL_COLUMN = "ezjdo_total";
+    private static final Map<String, String> COUNT_TEMPLATES = Collections.synchronizedMap(new LRUCache<String, String>(SQLTemplate.CACHE_SIZE));
+    /* package */ String totalColumn; // column holding the total rows of the unpaged query
+    /* package */ String totalSQL; // statement that returns the total rows of the unpaged query
+    private int foundTotal = -1; // if the found total is -1 the query did not return a total
+    private ArrayList<T> pageRows;
+    private Object[] seekValues;
+    private boolean prefetch = false;
+    private int maxCachedRows = 0; // 0 for no row cache
+    private boolean spillRows = false;
+    private ArrayList<T> cachedRows; // complete rows of the first pass
+    private SpillingResultList<T> spilledRows;
+    private int streamingFetchSize = 0;
+    private int executions = 0; // times the statement was run by an iterator
+    /* package */ boolean invalidatesWrites = false; // the caches are invalidated once the statement ran and wrote
+    private boolean queryCached = false;
+    private ResultSet presetResultSet; // a result set handed over by MultiResults
+    private static final int PREFETCH_THREADS = 2;
+    private static final int PREFETCH_QUEUE = 32;
+    private static final long PREFETCH_TTL = 30000; // milliseconds a prefetched page is served
+    private static final Map<String, PrefetchedPage> PREFETCHED = Collections.synchronizedMap(new LRUCache<String, PrefetchedPage>(64));
+    private static ThreadPoolExecutor prefetchExecutor;
+    private static final AtomicLong WRITE_GENERATION = new AtomicLong(); // counts the writes a prefetched page could miss
 
     public Results() {
     }
@@ -58,13 +97,25 @@ public class Results<T> implements Iterable<T> {
             } else {
                 this.pageNumber = pageNumber;
                 this.itemsPerPage = itemsPerPage;
-                pagedResults = sqlQueryHelper.createPagedResults(originalResults.clazz, originalSQL, originalValues, pageNumber, itemsPerPage);
+                pagedResults = sqlQueryHelper.createPagedResults(originalResults, pageNumber, itemsPerPage);
             }
         } catch (ezJDOException ex) {
             throw new RuntimeException(ex);
         }
     }
 
+    /* package */ Results(Results<T> originalResults, Integer itemsPerPage, Object[] seekValues) {
+        this.originalResults = originalResults;
+        this.itemsPerPage = itemsPerPage;
+        this.seekValues = seekValues;
+        try {
+            SQLQueryHelper sqlQueryHelper = BaseObject.getSQLQueryHelper(originalResults.clazz.getName());
+            pagedResults = sqlQueryHelper.createKeysetResults(originalResults, seekValues, itemsPerPage);
+        } catch (ezJDOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
     /* package */ Results(Class<T> clazz, Statement statement, String originalSQL, Object... originalValues) {
         this.clazz = clazz;
         this.statement = statement;
@@ -75,6 +126,17 @@ public class Results<T> implements Iterable<T> {
         init();
     }
 
+    /**
+     * Wraps a result set of a statement that is read by someone else, the
+     * results only read this result set.
+     */
+    /* package */ Results(Class<T> clazz, ResultSet resultSet, int sourceTableIndex) {
+        this.clazz = clazz;
+        this.presetResultSet = resultSet;
+        this.sourceTableIndex = sourceTableIndex;
+        this.values = new Object[0];
+    }
+
     /* package */ Results(Class<T> clazz, Statement statement) {
         this.clazz = clazz;
         this.statement = statement;
@@ -129,27 +191,45 @@ public class Results<T> implements Iterable<T> {
         private boolean hasKeys = false;
         private T2 object = null;
         private Class<T2> clazz;
+        private RowMapper mapper; // compiled for mappedResultSet
+        private ResultSet mappedResultSet;
+        private ArrayDeque<T2> keyedObjects; // fetched for generated keys already read
+        private boolean keysLeft = false;
 
         public ResultListIterator(Class<T2> clazz) throws ezJDOException {
             this.clazz = clazz;
             if (!iteratorTaken) {
                 iteratorTaken = true;
                 try {
-                    if (clazz != null) {
+                    if (presetResultSet != null) {
+                        resultSet = presetResultSet;
+                        hasNext = resultSet.next();
+                    } else if (clazz != null) {
                         if (statement instanceof CallableStatement) {
                             if (BaseObject.debugging) {
                                 BaseObject.log.log(Level.INFO, originalSQL);
                             }
                             //long start = System.currentTimeMillis();
-                            getNextResultset(((CallableStatement) statement).execute());
+                            executions++;
+                            boolean resultSetObject = ((CallableStatement) statement).execute();
+                            if (invalidatesWrites) {
+                                invalidatesWrites = false;
+                                BaseObject.invalidateWrites(null); // the procedure can write to any table
+                            }
+                            getNextResultset(resultSetObject);
                             //System.out.println(System.currentTimeMillis() - start);
                         } else if (statement instanceof PreparedStatement) {
                             if (BaseObject.debugging) {
                                 BaseObject.log.log(Level.INFO, originalSQL);
                             }
                             //long start = System.currentTimeMillis();
+                            executions++;
                             getNextResultset(((PreparedStatement) statement).execute());
                             //System.out.println(System.currentTimeMillis() - start);
+                            if (totalSQL != null && statement.getFetchSize() != Integer.MIN_VALUE) {
+                                // must run before anything else uses the connection, streaming results are still open
+                                fetchTotal();
+                            }
                         }
                     }
                 } catch (SQLException ex) {
@@ -160,6 +240,19 @@ public class Results<T> implements Iterable<T> {
             }
         }
 
+        private void fetchTotal() throws SQLException {
+            if (BaseObject.debugging) {
+                BaseObject.log.log(Level.INFO, totalSQL);
+            }
+            Statement totalStmt = statement.getConnection().createStatement();
+            ResultSet rs = totalStmt.executeQuery(totalSQL);
+            if (rs.next()) {
+                foundTotal = rs.getInt(1);
+            }
+            rs.close();
+            totalStmt.close();
+        }
+
         private void getNextResultset(Boolean resultSetObject) throws SQLException {
             boolean hasMoreResults = true;
             int localUpdateCount = 0;
@@ -169,6 +262,10 @@ public class Results<T> implements Iterable<T> {
                 } else {
                     localUpdateCount = statement.getUpdateCount();
                     if (localUpdateCount != -1) {
+                        if (invalidatesWrites) {
+                            invalidatesWrites = false;
+                            BaseObject.invalidateWrites(originalSQL);
+                        }
                         tmpUpdateCount += localUpdateCount;
                         if (statement instanceof CallableStatement) {
                             hasNext = false;
@@ -189,7 +286,7 @@ public class Results<T> implements Iterable<T> {
 
         @Override
         public boolean hasNext() {
-            if (clazz != null && !hasNext) {
+            if (clazz != null && !hasNext && presetResultSet == null) {
                 hasKeys = false;
                 try {
                     if (!statement.isClosed()) {
@@ -206,15 +303,29 @@ public class Results<T> implements Iterable<T> {
         public T2 next() {
             try {
                 object = null;
-                if (hasNext) {
-                    if (hasKeys) {
-                        if (BaseObject.class.isAssignableFrom(clazz)) {
+                if (hasNext && hasKeys && BaseObject.class.isAssignableFrom(clazz)) {
+                    if (keyedObjects == null || keyedObjects.isEmpty()) {
+                        // read a chunk of generated keys and fetch their rows with one query
+                        ArrayList<Object[]> chunk = new ArrayList<Object[]>();
+                        keysLeft = true;
+                        while (keysLeft && chunk.size() < BaseObject.BATCH_SIZE) {
                             Object[] keys = new Object[BaseObject.keyPos[tableIndex].length];
                             for (int i = 0; i < keys.length; i++) {
                                 keys[i] = resultSet.getObject(i + 1);
                             }
-                            object = clazz.cast(BaseObject.find(clazz, keys));
-                        } else if (clazz.isArray()) {
+                            chunk.add(keys);
+                            keysLeft = resultSet.next();
+                        }
+                        keyedObjects = new ArrayDeque<T2>(BaseObject.findByKeys(clazz, chunk));
+                    }
+                    object = keyedObjects.removeFirst();
+                    hasNext = !keyedObjects.isEmpty() || keysLeft;
+                    if (!hasNext) {
+                        resultSet.close();
+                    }
+                } else if (hasNext) {
+                    if (hasKeys) {
+                        if (clazz.isArray()) {
                             int size = resultSet.getMetaData().getColumnCount();
                             object = clazz.cast(Array.newInstance(clazz.getComponentType(), size));
                             for (int i = 0; i < size; i++) {
@@ -228,7 +339,14 @@ public class Results<T> implements Iterable<T> {
                             object = clazz.cast(var);
                         }
                     } else {
-                        object = clazz.cast(BaseObject.construct(clazz, resultSet));
+                        if (totalColumn != null && foundTotal == -1) {
+                            foundTotal = resultSet.getInt(totalColumn);
+                        }
+                        if (mappedResultSet != resultSet && !clazz.isArray()) {
+                            mapper = BaseObject.getRowMapper(clazz, resultSet);
+                            mappedResultSet = resultSet;
+                        }
+                        object = clazz.cast(BaseObject.construct(clazz, resultSet, mapper));
                     }
                     hasNext = resultSet.next();
                     if (!hasNext) {
@@ -243,6 +361,31 @@ public class Results<T> implements Iterable<T> {
             return object;
         }
 
+        /* package */ void close() {
+            try {
+                if (presetResultSet != null) {
+                    if (!resultSet.isClosed()) {
+                        resultSet.close(); // the statement belongs to MultiResults
+                    }
+                } else if (clazz != null && !statement.isClosed()) {
+                    if (hasNext) {
+                        try {
+                            statement.cancel(); // stop the database from sending the rest of the rows
+                        } catch (SQLException ex) {
+                            BaseObject.log.log(Level.FINEST, "The statement could not be canceled.", ex);
+                        }
+                    }
+                    if (resultSet != null && !resultSet.isClosed()) {
+                        resultSet.close();
+                    }
+                    statement.close();
+                }
+            } catch (SQLException ex) {
+                throw new RuntimeException(new ezJDOException("The database threw and error while trying to close the results. Please check your database connection.", ex));
+            }
+            hasNext = false;
+        }
+
         @Override
         public void remove() {
             if (BaseObject.class.isAssignableFrom(clazz)) {
@@ -261,21 +404,454 @@ public class Results<T> implements Iterable<T> {
     public Iterator<T> iterator() {
         if (pagedResults == null) {
             try {
+                if (cachedRows != null) {
+                    return Collections.unmodifiableList(cachedRows).iterator();
+                } else if (spilledRows != null) {
+                    return spilledRows.iterator();
+                } else if (iteratorTaken && maxCachedRows > 0) {
+                    // the cache overflowed or the first pass stopped early
+                    prepareAgain();
+                }
+                if (isQueryCacheable()) {
+                    String key = QueryCache.key(clazz, originalSQL, values);
+                    Object[] rows = QueryCache.get(key);
+                    if (rows != null) {
+                        return replay(rows);
+                    }
+                    return new QueryCachingIterator(new ResultListIterator<T>(clazz), key, QueryCache.getGeneration());
+                }
+                if (maxCachedRows > 0 && clazz != null) {
+                    return new CachingIterator(new ResultListIterator<T>(clazz));
+                }
                 return new ResultListIterator<T>(clazz);
             } catch (ezJDOException ex) {
                 throw new RuntimeException(ex);
             }
         } else {
-            return pagedResults.iterator();
+            return loadPage().iterator();
+        }
+    }
+
+    private boolean isQueryCacheable() {
+        return queryCached && presetResultSet == null && originalSQL != null && !(statement instanceof CallableStatement)
+                && (BaseObject.class.isAssignableFrom(clazz) || Number.class.isAssignableFrom(clazz) || String.class.isAssignableFrom(clazz));
+    }
+
+    /**
+     * Builds the rows kept by the query cache again, the statement is not
+     * needed.
+     */
+    private Iterator<T> replay(Object[] rows) throws ezJDOException {
+        try {
+            if (statement != null) {
+                statement.close();
+            }
+        } catch (SQLException ex) {
+        }
+        ArrayList<T> objects = new ArrayList<T>(rows.length);
+        boolean baseObjects = BaseObject.class.isAssignableFrom(clazz);
+        for (Object row : rows) {
+            objects.add(baseObjects ? BaseObject.hydrate(clazz, (Object[]) row) : clazz.cast(row));
+        }
+        return Collections.unmodifiableList(objects).iterator();
+    }
+
+    /**
+     * Collects the rows for the query cache, the rows are kept when the
+     * iterator reaches the end.
+     */
+    private final class QueryCachingIterator implements Iterator<T> {
+
+        private final ResultListIterator<T> iterator;
+        private final String key;
+        private final long generation;
+        private ArrayList<Object> rows = new ArrayList<Object>();
+
+        private QueryCachingIterator(ResultListIterator<T> iterator, String key, long generation) {
+            this.iterator = iterator;
+            this.key = key;
+            this.generation = generation;
+        }
+
+        @Override
+        public boolean hasNext() {
+            boolean hasNext = iterator.hasNext();
+            if (!hasNext && rows != null) {
+                QueryCache.put(key, originalSQL, rows.toArray(), generation);
+                rows = null;
+            }
+            return hasNext;
+        }
+
+        @Override
+        public T next() {
+            T object = iterator.next();
+            if (rows != null) {
+                if (rows.size() < QueryCache.MAX_ROWS) {
+                    rows.add(object instanceof BaseObject ? ((BaseObject) object).snapshot() : object);
+                } else {
+                    rows = null; // too many to keep
+                }
+            }
+            return object;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        /* package */ void close() {
+            iterator.close();
+            rows = null;
+        }
+    }
+
+    /**
+     * Prepares the select statement again so it can be read a second time. The
+     * statement of the first pass is shared with its iterator, so this fails
+     * while that iterator still has rows to read instead of closing it under
+     * the iterator.
+     */
+    private void prepareAgain() throws ezJDOException {
+        if (sourceTableIndex == -1 || originalSQL == null || statement instanceof CallableStatement || !SQLStatement.parse(originalSQL).isSelect()) {
+            throw new ezJDOException("You cannot call the iterator once you have already called it.");
+        }
+        try {
+            if (!statement.isClosed()) {
+                throw new ezJDOException("You cannot call the iterator again while the first one is still open, read it to the end or close its stream first.");
+            }
+        } catch (SQLException ex) {
+            throw new ezJDOException("The database threw and error while trying to run the query again. Please check your database connection.", ex);
+        }
+        if (BaseObject.debugging) {
+            BaseObject.log.log(Level.INFO, "the row cache is not complete, running the query again");
+        }
+        try {
+            PreparedStatement prepStmt = BaseObject.getConnection(sourceTableIndex, Thread.currentThread().getId()).prepareStatement(originalSQL);
+            int i = 1;
+            for (Object value : values) {
+                prepStmt.setObject(i++, value);
+            }
+            statement = prepStmt;
+        } catch (SQLException ex) {
+            throw new ezJDOException("The database threw and error while trying to run the query again. Please check your database connection.", ex);
+        }
+        iteratorTaken = false;
+        if (streamingFetchSize > 0) {
+            streaming(streamingFetchSize);
+        }
+    }
+
+    /**
+     * Keeps the rows of the first pass so the next iterator can replay them.
+     */
+    private final class CachingIterator implements Iterator<T> {
+
+        private final ResultListIterator<T> iterator;
+        private ArrayList<T> rows = new ArrayList<T>();
+        private SpillingResultList<T> spill;
+
+        private CachingIterator(ResultListIterator<T> iterator) {
+            this.iterator = iterator;
+            if (spillRows) {
+                spill = new SpillingResultList<T>(clazz, maxCachedRows);
+                rows = null;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            boolean hasNext = iterator.hasNext();
+            if (!hasNext) {
+                try {
+                    complete();
+                } catch (ezJDOException ex) {
+                    throw new RuntimeException(ex);
+                }
+            }
+            return hasNext;
+        }
+
+        private void complete() throws ezJDOException {
+            if (rows != null) {
+                cachedRows = rows;
+                rows = null;
+                if (BaseObject.debugging) {
+                    BaseObject.log.log(Level.INFO, "cached {0} rows on the heap", cachedRows.size());
+                }
+            } else if (spill != null) {
+                spill.finish();
+                spilledRows = spill;
+                spill = null;
+                if (BaseObject.debugging) {
+                    BaseObject.log.log(Level.INFO, "cached {0} rows, {1} of them on the heap and {2} in {3} bytes on disk", new Object[]{spilledRows.size(), spilledRows.size() - spilledRows.getSpilledRows(), spilledRows.getSpilledRows(), spilledRows.getSpilledBytes()});
+                }
+            }
+        }
+
+        @Override
+        public T next() {
+            T object = iterator.next();
+            try {
+                if (spill != null) {
+                    spill.append(object);
+                } else if (rows != null) {
+                    if (rows.size() < maxCachedRows) {
+                        rows.add(object);
+                    } else {
+                        rows = null; // too many, the next iterator runs the query again
+                    }
+                }
+            } catch (ezJDOException ex) {
+                throw new RuntimeException(ex);
+            }
+            return object;
+        }
+
+        /* package */ void close() {
+            iterator.close();
+            if (spill != null) {
+                spill.close();
+                spill = null;
+            }
+            rows = null;
+        }
+
+        @Override
+        public void remove() {
+            iterator.remove();
+        }
+    }
+
+    /**
+     * A page is small, so it is read once and kept. When the paged query also
+     * returned the total rows it is stored on the original results so total()
+     * does not need a count query.
+     */
+    private ArrayList<T> loadPage() {
+        if (pageRows == null) {
+            boolean prefetching = seekValues == null && (prefetch || originalResults.prefetch);
+            PrefetchedPage prefetched = prefetching ? PREFETCHED.remove(getPageKey(pageNumber)) : null;
+            if (prefetched != null && System.currentTimeMillis() - prefetched.created < PREFETCH_TTL
+                    && prefetched.generation == WRITE_GENERATION.get()) {
+                if (BaseObject.debugging) {
+                    BaseObject.log.log(Level.INFO, "using prefetched page {0} of: {1}", new Object[]{pageNumber, originalResults.originalSQL});
+                }
+                try {
+                    pagedResults.statement.close(); // never executed
+                } catch (SQLException ex) {
+                    BaseObject.log.log(Level.FINEST, "could not close the unused page statement", ex);
+                }
+                @SuppressWarnings("unchecked")
+                ArrayList<T> rows = (ArrayList<T>) prefetched.rows;
+                pageRows = rows;
+                if (prefetched.total != -1 && originalResults.size == -1) {
+                    originalResults.size = prefetched.total;
+                }
+            } else {
+                pageRows = readPage(pagedResults);
+                if (pagedResults.foundTotal != -1 && originalResults.size == -1) {
+                    originalResults.size = pagedResults.foundTotal;
+                }
+            }
+            if (prefetching && pageRows.size() == itemsPerPage
+                    && (originalResults.size == -1 || pageNumber * itemsPerPage < originalResults.size)) {
+                prefetchPage(pageNumber + 1);
+            }
+        }
+        return pageRows;
+    }
+
+    /**
+     * Records a write, the pages prefetched before it are not served.
+     */
+    /* package */ static void writeMade() {
+        WRITE_GENERATION.incrementAndGet();
+    }
+
+    private static <T> ArrayList<T> readPage(Results<T> results) {
+        ArrayList<T> rows = new ArrayList<T>();
+        Iterator<T> iterator = results.iterator();
+        while (iterator.hasNext()) {
+            rows.add(iterator.next());
+        }
+        return rows;
+    }
+
+    private String getPageKey(int page) {
+        String className = originalResults.clazz.getName();
+        return className + '\u0000' + originalResults.originalSQL + '\u0000' + page + ':' + itemsPerPage + '\u0000' + new EntityKey(className, originalResults.originalValues).getCanonical();
+    }
+
+    /**
+     * Reads a page on the prefetch threads and keeps it for a short while. The
+     * page is built on the prefetch thread so it uses that thread's connection,
+     * when the pool is busy the page is simply not prefetched. A page is only
+     * served while no write was made since it started to be read.
+     */
+    private void prefetchPage(final int page) {
+        final String key = getPageKey(page);
+        if (PREFETCHED.containsKey(key)) {
+            return;
         }
+        final Results<T> original = originalResults;
+        final Integer perPage = itemsPerPage;
+        getPrefetchExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (BaseObject.debugging) {
+                        BaseObject.log.log(Level.INFO, "prefetching page {0} of: {1}", new Object[]{page, original.originalSQL});
+                    }
+                    long generation = WRITE_GENERATION.get();
+                    Results<T> next = new Results<T>(original, page, perPage);
+                    ArrayList<T> rows = readPage(next.pagedResults);
+                    PREFETCHED.put(key, new PrefetchedPage(rows, next.pagedResults.foundTotal, generation));
+                } catch (RuntimeException ex) {
+                    BaseObject.log.log(Level.WARNING, "could not prefetch page " + page + " of: " + original.originalSQL, ex);
+                }
+            }
+        });
+    }
+
+    private static synchronized ThreadPoolExecutor getPrefetchExecutor() {
+        if (prefetchExecutor == null) {
+            prefetchExecutor = new ThreadPoolExecutor(PREFETCH_THREADS, PREFETCH_THREADS, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(PREFETCH_QUEUE), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "ezjdo-prefetch");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            }, new ThreadPoolExecutor.DiscardPolicy());
+            // idle threads end, which closes their connections
+            prefetchExecutor.allowCoreThreadTimeOut(true);
+        }
+        return prefetchExecutor;
+    }
+
+    private static final class PrefetchedPage {
+
+        private final long created = System.currentTimeMillis();
+        private final ArrayList<?> rows;
+        private final int total;
+        private final long generation; // of the writes when the read started
+
+        private PrefetchedPage(ArrayList<?> rows, int total, long generation) {
+            this.rows = rows;
+            this.total = total;
+            this.generation = generation;
+        }
+    }
+
+    /* package */ final class ResultSpliterator extends Spliterators.AbstractSpliterator<T> {
+
+        private Iterator<T> iterator; // taken on the first advance, which runs the query
+        private boolean closed = false;
+
+        /* package */ ResultSpliterator() {
+            super(Long.MAX_VALUE, Spliterator.ORDERED);
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super T> action) {
+            if (closed) {
+                return false;
+            }
+            if (iterator == null) {
+                iterator = iterator();
+            }
+            if (iterator.hasNext()) {
+                action.accept(iterator.next());
+                return true;
+            }
+            close();
+            return false;
+        }
+
+        /* package */ void close() {
+            closed = true;
+            if (iterator != null) {
+                Results.close(iterator);
+            }
+        }
+    }
+
+    /**
+     * Releases the statement behind an iterator of these results, iterators
+     * over cached rows hold nothing.
+     */
+    /* package */ static void close(Iterator<?> iterator) {
+        if (iterator instanceof Results.ResultListIterator) {
+            ((Results.ResultListIterator) iterator).close();
+        } else if (iterator instanceof Results.CachingIterator) {
+            ((Results.CachingIterator) iterator).close();
+        } else if (iterator instanceof Results.QueryCachingIterator) {
+            ((Results.QueryCachingIterator) iterator).close();
+        }
+    }
+
+    /**
+     * Returns a sequential stream over the results. The query runs when the
+     * terminal operation pulls the first row, and objects are built from the
+     * result set only as the stream pulls them, so operations like limit() or
+     * findFirst() do not read the remaining rows.
+     *
+     * <p>The stream closes itself when a terminal operation like findFirst(),
+     * anyMatch() or collect() returns, which cancels the query if there are
+     * rows left and releases the statement. The rows handed out by iterator()
+     * or spliterator(), and primitive streams like mapToInt(), are not
+     * consumed by a terminal operation of this stream, so close those in a
+     * try-with-resources block. The connection stays open because it belongs
+     * to the current thread.
+     *
+     * @return a lazy stream of the results.
+     */
+    public Stream<T> stream() {
+        final ResultSpliterator spliterator = new ResultSpliterator();
+        return new ClosingStream<T>(StreamSupport.stream(spliterator, false).onClose(new Runnable() {
+            @Override
+            public void run() {
+                spliterator.close();
+            }
+        }));
+    }
+
+    /**
+     * Returns a publisher of the results that reads rows only as the
+     * subscriber requests them, on the async threads. See publisher(Executor).
+     *
+     * @return a publisher for one subscriber.
+     */
+    public Flow.Publisher<T> publisher() {
+        return publisher(BaseObject.getAsyncExecutor());
+    }
+
+    /**
+     * Returns a publisher of the results. Rows are read from the result set
+     * only as the subscriber requests them, and the objects are built and
+     * delivered on the executor. Cancelling the subscription or reaching the
+     * end releases the statement. The results can only be read once, so the
+     * publisher accepts a single subscriber.
+     *
+     * <p>The statement belongs to the connection of the thread that created
+     * the results, do not use that connection for other queries while the
+     * rows are published.</p>
+     *
+     * @param executor runs the reads and the subscriber calls.
+     * @return a publisher for one subscriber.
+     */
+    public Flow.Publisher<T> publisher(Executor executor) {
+        return new ResultsPublisher<T>(this, executor);
     }
 
     public int size() throws ezJDOException {
         if (size == -1) {
-            if (pagedResults == null) {
-                Pattern p = Pattern.compile("(group|order)\\s+by.*", Pattern.CASE_INSENSITIVE);
-                String SQL = p.matcher(originalSQL).replaceAll("");
-                String countSQL = "SELECT COUNT(*) FROM (" + SQL + ") ezcount";
+            if (pagedResults == null && originalSQL == null) {
+                throw new ezJDOException("These results can only be counted by reading them.");
+            } else if (pagedResults == null) {
+                String countSQL = getCountSQL(originalSQL);
                 try {
                     PreparedStatement prepStmt = BaseObject.getConnection(BaseObject.getTableCacheIndex(clazz.getName()), Thread.currentThread().getId()).prepareStatement(countSQL);
                     int i = 1;
@@ -290,31 +866,64 @@ public class Results<T> implements Iterable<T> {
                     //System.out.println(System.currentTimeMillis() - start);
                     rs.next();
                     size = rs.getInt(1);
+                    rs.close();
+                    prepStmt.close();
                 } catch (SQLException ex) {
                     throw new ezJDOException("The conditions for the method are not in correct SQL syntax, or you are not passing the correct BaseObject class", ex);
                 }
+            } else if (pageRows != null || seekValues != null) {
+                size = loadPage().size();
             } else {
                 int totalItems = total();
-                if (itemsPerPage == -1 || pageNumber == -1) {
+                if (pageRows != null) { // total() read the page
+                    size = pageRows.size();
+                } else if (itemsPerPage == -1 || pageNumber == -1) {
                     size = totalItems;
-                }
-                int lastPage = (totalItems / itemsPerPage) + ((totalItems % itemsPerPage > 0) ? 1 : 0);
-                if (pageNumber > lastPage) {
-                    size = 0;
-                } else if (pageNumber == lastPage) {
-                    size = totalItems % itemsPerPage;
                 } else {
-                    size = itemsPerPage;
+                    size = Math.max(0, Math.min(itemsPerPage, totalItems - ((pageNumber - 1) * itemsPerPage)));
                 }
             }
         }
         return size;
     }
 
+    /**
+     * Wraps the statement in a count query. The order by is dropped unless a
+     * limit depends on it, the group by is kept so the groups are counted.
+     */
+    private static String getCountSQL(String sql) {
+        String countSQL = COUNT_TEMPLATES.get(sql);
+        if (countSQL == null) {
+            SQLStatement statement = SQLStatement.parse(sql);
+            if (!statement.isSimpleSelect()) {
+                // unions and statements that are not a select are counted as written
+                countSQL = "SELECT COUNT(*) FROM (" + statement.getWithoutOrderBy() + ") ezcount";
+            } else if (statement.getTail() != null) {
+                countSQL = "SELECT COUNT(*) FROM (" + statement.getUnordered() + (statement.getOrderBy() == null ? "" : " ORDER BY " + statement.getOrderBy()) + " " + statement.getTail() + ") ezcount";
+            } else {
+                countSQL = "SELECT COUNT(*) FROM (" + statement.getUnordered() + ") ezcount";
+            }
+            COUNT_TEMPLATES.put(sql, countSQL);
+        }
+        return countSQL;
+    }
+
+    /**
+     * Returns the total number of rows for the query before paging. The count
+     * is cached, and when the paging query can return the total with the page
+     * (COUNT(*) OVER() or FOUND_ROWS()) the page is read and no count query is
+     * issued.
+     *
+     * @return the total number of rows.
+     * @throws ezJDOException
+     */
     public int total() throws ezJDOException {
         if (pagedResults == null || originalResults == null) {
             return size();
         } else {
+            if (originalResults.size == -1 && (pagedResults.totalColumn != null || pagedResults.totalSQL != null)) {
+                loadPage();
+            }
             return originalResults.size();
         }
     }
@@ -331,10 +940,209 @@ public class Results<T> implements Iterable<T> {
         return list;
     }
 
+    /**
+     * Reads every row into a list that keeps the first rows on the heap and
+     * writes the rest to a memory mapped temp file. Use it for results that
+     * need random access but do not fit on the heap, and close the list when
+     * it is no longer needed.
+     *
+     * @param maxHeapRows the number of rows kept as objects.
+     * @return a read only list of the results.
+     * @throws ezJDOException
+     */
+    public SpillingResultList<T> list(int maxHeapRows) throws ezJDOException {
+        return new SpillingResultList<T>(clazz != null ? clazz : originalResults.clazz, iterator(), maxHeapRows);
+    }
+
+    /**
+     * Streams the results from the database instead of letting the driver
+     * buffer the whole result set before the first row is returned.
+     *
+     * <p>The statement is set up forward only and read only with a fetch size
+     * that suits the driver, for MySQL that is row by row streaming. This must
+     * be called before the iterator. While a MySQL result set is streaming no
+     * other statement can be issued on the same connection, so finish or close
+     * the iteration before running other queries on the same thread.
+     *
+     * @param fetchSize the number of rows to fetch for each round trip.
+     * @return these results.
+     */
+    public Results<T> streaming(int fetchSize) {
+        if (pagedResults != null) {
+            pagedResults.streaming(fetchSize);
+            return this;
+        }
+        if (iteratorTaken) {
+            throw new RuntimeException(new ezJDOException("You cannot stream the results once you have already called the iterator."));
+        }
+        if (clazz == null) {
+            return this; // updates have already been executed
+        }
+        streamingFetchSize = fetchSize;
+        try {
+            if (presetResultSet != null) {
+                presetResultSet.setFetchSize(fetchSize);
+                return this;
+            }
+            if (!(statement instanceof CallableStatement)
+                    && (statement.getResultSetType() != ResultSet.TYPE_FORWARD_ONLY || statement.getResultSetConcurrency() != ResultSet.CONCUR_READ_ONLY)) {
+                Connection connection = statement.getConnection();
+                statement.close();
+                PreparedStatement prepStmt = connection.prepareStatement(originalSQL, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+                int i = 1;
+                for (Object value : values) {
+                    prepStmt.setObject(i++, value);
+                }
+                statement = prepStmt;
+            }
+            statement.setFetchDirection(ResultSet.FETCH_FORWARD);
+            SQLQueryHelper sqlQueryHelper = null;
+            try {
+                sqlQueryHelper = (sourceTableIndex != -1) ? BaseObject.getSQLQueryHelper(sourceTableIndex) : BaseObject.getSQLQueryHelper(clazz.getName());
+            } catch (ezJDOException ex) {
+                // no helper for this database, use the fetch size as it is
+            }
+            if (sqlQueryHelper != null) {
+                sqlQueryHelper.configureStreaming(statement, fetchSize);
+            } else {
+                statement.setFetchSize(fetchSize);
+            }
+        } catch (SQLException ex) {
+            throw new RuntimeException(new ezJDOException("The database threw and error while trying to set up streaming. Please check your database connection.", ex));
+        }
+        return this;
+    }
+
+    /**
+     * Turns on prefetching for paged results. Once a page is read the next
+     * page is read in the background and kept for a short while, so scrolling
+     * through the pages in order does not wait on the database. Call it on the
+     * results before paging them or on the page itself.
+     *
+     * @return these results.
+     */
+    public Results<T> prefetch() {
+        prefetch = true;
+        return this;
+    }
+
     public Results<T> paged(Integer pageNumber, Integer itemsPerPage) {
         return new Results<T>(this, pageNumber, itemsPerPage);
     }
 
+    /**
+     * Returns the page of results that follows the last row seen (keyset
+     * paging). Instead of skipping rows with an offset the query continues
+     * after the given values, so every page costs the same no matter how deep
+     * it is.
+     *
+     * <p>The results are ordered by the columns of the order by statement, or
+     * by the keys if the query has no order by. The order must be ascending
+     * and the columns should identify a row, for example:</p>
+     * <blockquote><pre>
+     * Results&lt;Document&gt; page = findAll(Document.class).seek(20);
+     * // ... show the page and remember the last document
+     * page = findAll(Document.class).seek(20, last.getKeyValues());
+     * </pre></blockquote>
+     *
+     * @param itemsPerPage the number of rows in the page.
+     * @param lastValues the seek column values of the last row seen, empty for
+     * the first page.
+     * @return the page of results.
+     */
+    public Results<T> seek(Integer itemsPerPage, Object... lastValues) {
+        return new Results<T>(this, itemsPerPage, lastValues);
+    }
+
+    /**
+     * Keeps up to maxRows rows in memory while the results are iterated, so
+     * the next iterator() replays them instead of failing. If there are more
+     * rows than that the cache is dropped and the next iterator() runs the
+     * select again, once the first iterator was read to the end. Call it
+     * before the first iterator.
+     *
+     * <p>The rows are counted, not measured, so size maxRows for the objects
+     * of the query. getHeapRows() reports how many were kept.
+     *
+     * @param maxRows the number of rows that can be cached.
+     * @return these results.
+     */
+    public Results<T> cacheRows(int maxRows) {
+        maxCachedRows = maxRows;
+        spillRows = false;
+        return this;
+    }
+
+    /**
+     * Keeps every row while the results are iterated so the next iterator()
+     * replays them, rows past maxHeapRows are kept in a temp file (see
+     * SpillingResultList). Call it before the first iterator.
+     *
+     * @param maxHeapRows the number of rows kept as objects.
+     * @return these results.
+     */
+    public Results<T> spillRows(int maxHeapRows) {
+        maxCachedRows = Math.max(1, maxHeapRows);
+        spillRows = true;
+        return this;
+    }
+
+    /**
+     * Reads the rows from the shared query cache when the same statement was
+     * read before with the same values, and keeps the rows there after a
+     * complete read. Writes through ezJDO to the tables the statement reads
+     * remove it from the cache. Only BaseObject, Number and String results
+     * are kept, and only up to ezjdo.querycache.rows rows (1000 by default).
+     * Statements where the tables read are not certain, like ones with a sub
+     * query or a derived table, are never kept.
+     * Call it before the first iterator.
+     *
+     * @return these results.
+     */
+    public Results<T> cached() {
+        queryCached = true;
+        return this;
+    }
+
+    /**
+     * @return the number of rows cached for the next iterator, 0 until a first
+     * pass is complete.
+     */
+    public int getCachedRows() {
+        return cachedRows != null ? cachedRows.size() : spilledRows != null ? spilledRows.size() : 0;
+    }
+
+    /**
+     * @return the number of cached rows kept as objects on the heap. Their
+     * size in memory is not measured.
+     */
+    public int getHeapRows() {
+        return cachedRows != null ? cachedRows.size() : spilledRows != null ? spilledRows.size() - spilledRows.getSpilledRows() : 0;
+    }
+
+    /**
+     * @return the bytes of cached rows kept in a temp file, the rows on the
+     * heap are not counted.
+     */
+    public long getSpilledBytes() {
+        return spilledRows != null ? spilledRows.getSpilledBytes() : 0;
+    }
+
+    /**
+     * @return the number of cached rows kept in a temp file.
+     */
+    public int getSpilledRows() {
+        return spilledRows != null ? spilledRows.getSpilledRows() : 0;
+    }
+
+    /**
+     * @return the number of times the statement was run, more than 1 when the
+     * row cache could not replay a pass and the query ran again.
+     */
+    public int getExecutions() {
+        return executions;
+    }
+
     public int getUpdateCount() {
         return updateCount;
     }
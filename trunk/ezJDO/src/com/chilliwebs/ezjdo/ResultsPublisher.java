@@ -0,0 +1,180 @@
+/*
+ * Copyright 2013 Nick Hecht chilliwebs@gmail.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.chilliwebs.ezjdo;
+
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * Publishes the rows of a Results. Rows are only read from the result set
+ * when the subscriber requests them, and every read happens on the executor
+ * one task at a time, so the statement is never used by two threads at once.
+ *
+ * @author Nick Hecht chilliwebs@gmail.com
+ */
+/* package */ class ResultsPublisher<T> implements Flow.Publisher<T> {
+
+    private final Results<T> results;
+    private final Executor executor;
+    private final AtomicBoolean subscribed = new AtomicBoolean(false);
+
+    /* package */ ResultsPublisher(Results<T> results, Executor executor) {
+        this.results = results;
+        this.executor = executor;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super T> subscriber) {
+        if (subscriber == null) {
+            throw new NullPointerException("subscriber");
+        }
+        if (!subscribed.compareAndSet(false, true)) {
+            // the results can only be read once
+            subscriber.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(long n) {
+                }
+
+                @Override
+                public void cancel() {
+                }
+            });
+            subscriber.onError(new IllegalStateException("The results can only have one subscriber."));
+            return;
+        }
+        new RowSubscription(subscriber).start();
+    }
+
+    private final class RowSubscription implements Flow.Subscription, Runnable {
+
+        private final Flow.Subscriber<? super T> subscriber;
+        private final AtomicLong demand = new AtomicLong();
+        private final AtomicInteger work = new AtomicInteger();
+        private volatile boolean cancelled = false;
+        private volatile Throwable badRequest;
+        private Iterator<T> iterator;
+        private boolean done = false;
+
+        private RowSubscription(Flow.Subscriber<? super T> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        private void start() {
+            subscriber.onSubscribe(this);
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                badRequest = new IllegalArgumentException("The number of rows requested must be positive: " + n);
+            } else {
+                long current;
+                long next;
+                do {
+                    current = demand.get();
+                    next = current + n < 0 ? Long.MAX_VALUE : current + n;
+                } while (!demand.compareAndSet(current, next));
+            }
+            schedule();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            schedule(); // releases the statement on the executor
+        }
+
+        private void schedule() {
+            if (work.getAndIncrement() == 0) {
+                try {
+                    executor.execute(this);
+                } catch (RejectedExecutionException ex) {
+                    // nothing is draining, so the rows can be released on this thread
+                    if (!done) {
+                        finish();
+                        subscriber.onError(ex);
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            int missed = 1;
+            do {
+                drain();
+                missed = work.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        private void drain() {
+            if (done) {
+                return;
+            }
+            if (cancelled) {
+                finish();
+                return;
+            }
+            if (badRequest != null) {
+                finish();
+                subscriber.onError(badRequest);
+                return;
+            }
+            try {
+                if (iterator == null) {
+                    iterator = results.iterator();
+                }
+                while (demand.get() > 0 && !cancelled) {
+                    if (!iterator.hasNext()) {
+                        finish();
+                        subscriber.onComplete();
+                        return;
+                    }
+                    T row = iterator.next();
+                    demand.decrementAndGet();
+                    subscriber.onNext(row);
+                }
+                if (cancelled) {
+                    finish();
+                } else if (!iterator.hasNext()) {
+                    // complete without waiting for another request
+                    finish();
+                    subscriber.onComplete();
+                }
+            } catch (RuntimeException ex) {
+                finish();
+                subscriber.onError(ex.getCause() != null ? ex.getCause() : ex);
+            }
+        }
+
+        private void finish() {
+            done = true;
+            if (iterator != null) {
+                try {
+                    Results.close(iterator);
+                } catch (RuntimeException ex) {
+                    BaseObject.log.log(Level.FINEST, "could not close the published results", ex);
+                }
+            }
+        }
+    }
+}
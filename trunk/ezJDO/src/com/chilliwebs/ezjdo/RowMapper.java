@@ -0,0 +1,117 @@
+/*
+ * Copyright 2013 Nick Hecht chilliwebs@gmail.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.chilliwebs.ezjdo;
+
+import com.chilliwebs.ezjdo.exceptions.ezJDOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Maps the rows of a result set to objects of a class. The column positions,
+ * fields and constructor are looked up once for each class and result set
+ * shape, so mapping a row is a loop over column indexes.
+ *
+ * @author Nick Hecht chilliwebs@gmail.com
+ */
+/* package */ final class RowMapper {
+
+    private static final Map<String, RowMapper> MAPPERS = Collections.synchronizedMap(new LRUCache<String, RowMapper>(SQLTemplate.CACHE_SIZE));
+    /* package */ static final String RESERVED_PREFIX = "ezjdo_"; // columns added by the paging queries
+    /* package */ final int columnCount;
+    /* package */ final int[] positions; // the column of each attribute, 0 if the result set does not have it
+    /* package */ final Field[] columnFields; // the field of each column, null to skip the column
+    /* package */ final Constructor<?> constructor;
+
+    private RowMapper(int columnCount, int[] positions, Field[] columnFields, Constructor<?> constructor) {
+        this.columnCount = columnCount;
+        this.positions = positions;
+        this.columnFields = columnFields;
+        this.constructor = constructor;
+    }
+
+    /**
+     * Returns the mapper for the class and the shape of the result set.
+     *
+     * @param clazz the class the rows are mapped to.
+     * @param attributes the attributes of a BaseObject class, null for other
+     * classes.
+     * @param resultSet the result set.
+     */
+    /* package */ static RowMapper get(Class<?> clazz, String[] attributes, ResultSet resultSet) throws SQLException, ezJDOException {
+        ResultSetMetaData metaData = resultSet.getMetaData();
+        int count = metaData.getColumnCount();
+        String[] labels = new String[count];
+        String[] names = new String[count];
+        StringBuilder key = new StringBuilder(clazz.getName());
+        for (int i = 0; i < count; i++) {
+            labels[i] = metaData.getColumnLabel(i + 1);
+            names[i] = metaData.getColumnName(i + 1);
+            key.append('\u0000').append(labels[i]).append('\u001f').append(names[i]);
+        }
+        RowMapper mapper = MAPPERS.get(key.toString());
+        if (mapper == null) {
+            mapper = compile(clazz, attributes, labels, names);
+            MAPPERS.put(key.toString(), mapper);
+        }
+        return mapper;
+    }
+
+    private static RowMapper compile(Class<?> clazz, String[] attributes, String[] labels, String[] names) throws ezJDOException {
+        int[] positions = null;
+        Field[] columnFields = null;
+        Constructor<?> constructor = null;
+        try {
+            if (attributes != null) {
+                // the first column with a matching label wins, like ResultSet.findColumn
+                HashMap<String, Integer> columns = new HashMap<String, Integer>();
+                for (int i = labels.length - 1; i >= 0; i--) {
+                    columns.put(labels[i].toLowerCase(), i + 1);
+                }
+                positions = new int[attributes.length];
+                for (int n = 0; n < attributes.length; n++) {
+                    Integer position = columns.get(attributes[n].toLowerCase());
+                    positions[n] = position == null ? 0 : position;
+                }
+                constructor = clazz.getDeclaredConstructor();
+            } else if (!clazz.isArray() && !Number.class.isAssignableFrom(clazz) && !String.class.isAssignableFrom(clazz)) {
+                columnFields = new Field[names.length];
+                for (int i = 0; i < names.length; i++) {
+                    if (!labels[i].toLowerCase().startsWith(RESERVED_PREFIX)) {
+                        columnFields[i] = clazz.getDeclaredField(names[i]);
+                        columnFields[i].setAccessible(true);
+                    }
+                }
+                constructor = clazz.getDeclaredConstructor();
+            }
+            if (constructor != null) {
+                constructor.setAccessible(true);
+            }
+        } catch (NoSuchMethodException ex) {
+            throw new ezJDOException("The conditions for the method are not in correct SQL syntax, or you are not passing the correct BaseObject class", ex);
+        } catch (NoSuchFieldException ex) {
+            throw new ezJDOException("The conditions for the method are not in correct SQL syntax, or you are not passing the correct BaseObject class", ex);
+        } catch (SecurityException ex) {
+            throw new ezJDOException("The conditions for the method are not in correct SQL syntax, or you are not passing the correct BaseObject class", ex);
+        }
+        return new RowMapper(labels.length, positions, columnFields, constructor);
+    }
+}
@@ -16,11 +16,17 @@
 package com.chilliwebs.ezjdo;
 
 import com.chilliwebs.ezjdo.exceptions.ezJDOException;
+import java.sql.SQLException;
+import java.sql.Statement;
 
 /**
  * @author  Nick Hecht chilliwebs@gmail.com
  */
 /* package */ interface SQLQueryHelper {
 
-    public abstract <T> Results<T> createPagedResults(Class<T> clazz, String originalSQL, Object[] originalValues, Integer pageNumber, Integer itemsPerPage) throws ezJDOException;
+    public abstract <T> Results<T> createPagedResults(Results<T> originalResults, Integer pageNumber, Integer itemsPerPage) throws ezJDOException;
+
+    public abstract <T> Results<T> createKeysetResults(Results<T> originalResults, Object[] lastValues, Integer itemsPerPage) throws ezJDOException;
+
+    public abstract void configureStreaming(Statement statement, int fetchSize) throws SQLException;
 }
@@ -0,0 +1,367 @@
+/*
+ * Copyright 2013 Nick Hecht chilliwebs@gmail.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.chilliwebs.ezjdo;
+
+import java.util.ArrayList;
+
+/**
+ * A select statement split into its top level clauses.
+ *
+ * <p>The tokenizer skips string literals, quoted identifiers ("", [] and ``),
+ * comments and anything nested in parentheses, so keywords inside subqueries
+ * or literals are never taken for clauses of the outer statement. Clause text
+ * is kept as written without the clause keyword, absent clauses are null.
+ *
+ * @author Nick Hecht chilliwebs@gmail.com
+ */
+/* package */ final class SQLStatement {
+
+    private static final String[] CLAUSES = {"select", "from", "where", "group by", "having", "order by"};
+    private static final int SELECT = 0, FROM = 1, WHERE = 2, GROUP = 3, HAVING = 4, ORDER = 5, TAIL = 6;
+    private final String sql;
+    private final String text;
+    private final String[] parts = new String[7];
+    private boolean select = false;
+    private boolean compound = false;
+    private boolean multiple = false;
+    private int compoundOrder = -1;
+    private boolean compoundTail = false;
+
+    private SQLStatement(String sql) {
+        this.sql = sql;
+        this.text = stripComments(sql);
+    }
+
+    /**
+     * Splits the sql statement into its clauses.
+     *
+     * @param sql the SQL statement string.
+     * @return the parsed statement, check isSimpleSelect() before using the
+     * clauses.
+     */
+    /* package */ static SQLStatement parse(String sql) {
+        SQLStatement statement = new SQLStatement(sql);
+        statement.tokenize();
+        return statement;
+    }
+
+    /**
+     * Splits a list like the select or order by clause on its top level commas.
+     */
+    /* package */ static String[] splitList(String list) {
+        ArrayList<String> items = new ArrayList<String>();
+        int depth = 0;
+        int start = 0;
+        for (int i = 0; i < list.length(); i++) {
+            char c = list.charAt(i);
+            int skip = skipQuoted(list, i);
+            if (skip > i) {
+                i = skip - 1;
+            } else if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth--;
+            } else if (c == ',' && depth == 0) {
+                items.add(list.substring(start, i).trim());
+                start = i + 1;
+            }
+        }
+        items.add(list.substring(start).trim());
+        return items.toArray(new String[0]);
+    }
+
+    /**
+     * Replaces the comments with a space so the clauses can be put back
+     * together in another order.
+     */
+    private static String stripComments(String sql) {
+        if (!sql.contains("--") && !sql.contains("/*")) {
+            return sql;
+        }
+        StringBuilder sb = new StringBuilder(sql.length());
+        for (int i = 0; i < sql.length(); i++) {
+            int skip = skipQuoted(sql, i);
+            if (skip > i) {
+                char c = sql.charAt(i);
+                sb.append(c == '-' || c == '/' ? " " : sql.substring(i, skip));
+                i = skip - 1;
+            } else {
+                sb.append(sql.charAt(i));
+            }
+        }
+        return sb.toString();
+    }
+
+    private void tokenize() {
+        String sql = text;
+        String lower = sql.toLowerCase();
+        int[] starts = new int[7];
+        int[] ends = new int[7];
+        for (int i = 0; i < starts.length; i++) {
+            starts[i] = -1;
+        }
+        int depth = 0;
+        int current = -1;
+        int length = sql.length();
+        for (int i = 0; i < length; i++) {
+            char c = lower.charAt(i);
+            int skip = skipQuoted(sql, i);
+            if (skip > i) {
+                i = skip - 1;
+                continue;
+            }
+            if (c == '(') {
+                depth++;
+                continue;
+            } else if (c == ')') {
+                depth--;
+                continue;
+            } else if (c == ';') {
+                if (!sql.substring(i + 1).trim().isEmpty()) {
+                    multiple = compound = true; // more than one statement
+                }
+                if (current >= 0) {
+                    ends[current] = i;
+                }
+                length = i;
+                break;
+            }
+            if (depth != 0 || !Character.isLetter(c) || (i > 0 && isWordChar(lower.charAt(i - 1)))) {
+                continue;
+            }
+            if (current == -1) {
+                if (lower.startsWith("select", i) && !isWordAt(lower, i + 6)) {
+                    current = SELECT;
+                    starts[SELECT] = i + 6;
+                    select = true;
+                    i += 5;
+                    continue;
+                }
+                break; // not a plain select statement
+            }
+            if (compound || startsWord(lower, i, "union") || startsWord(lower, i, "except") || startsWord(lower, i, "intersect")) {
+                compound = true; // keep looking for a second statement
+                if (startsWord(lower, i, "union") || startsWord(lower, i, "except") || startsWord(lower, i, "intersect")) {
+                    compoundOrder = -1; // an order by so far belonged to a nested select
+                    compoundTail = false;
+                } else if (matchKeyword(lower, i, CLAUSES[ORDER]) > i) {
+                    compoundOrder = i;
+                } else if (compoundOrder >= 0 && (startsWord(lower, i, "limit") || startsWord(lower, i, "offset") || startsWord(lower, i, "fetch"))) {
+                    compoundTail = true;
+                }
+                continue;
+            }
+            int clause = -1;
+            int end = i;
+            for (int n = current + 1; n < CLAUSES.length; n++) {
+                end = matchKeyword(lower, i, CLAUSES[n]);
+                if (end > i) {
+                    clause = n;
+                    break;
+                }
+            }
+            if (clause == -1 && current != TAIL && current >= FROM
+                    && (startsWord(lower, i, "limit") || startsWord(lower, i, "offset") || startsWord(lower, i, "fetch") || startsWord(lower, i, "for"))) {
+                clause = TAIL;
+                end = i;
+            }
+            if (clause != -1) {
+                ends[current] = i;
+                current = clause;
+                starts[clause] = end;
+                i = Math.max(i, end - 1);
+            }
+        }
+        if (current >= 0 && ends[current] == 0) {
+            ends[current] = length;
+        }
+        for (int n = 0; n < parts.length; n++) {
+            if (starts[n] >= 0) {
+                parts[n] = sql.substring(starts[n], ends[n]).trim();
+            }
+        }
+    }
+
+    /**
+     * Returns the index after a quoted string, quoted identifier or comment
+     * that starts at i, or i if there is none.
+     */
+    private static int skipQuoted(String sql, int i) {
+        char c = sql.charAt(i);
+        char close;
+        if (c == '\'' || c == '"' || c == '`') {
+            close = c;
+        } else if (c == '[') {
+            close = ']';
+        } else if (c == '-' && sql.startsWith("--", i)) {
+            int end = sql.indexOf('\n', i);
+            return end == -1 ? sql.length() : end + 1;
+        } else if (c == '/' && sql.startsWith("/*", i)) {
+            int end = sql.indexOf("*/", i + 2);
+            return end == -1 ? sql.length() : end + 2;
+        } else {
+            return i;
+        }
+        for (int n = i + 1; n < sql.length(); n++) {
+            if (sql.charAt(n) == close) {
+                if (close != ']' && n + 1 < sql.length() && sql.charAt(n + 1) == close) {
+                    n++; // escaped quote
+                } else {
+                    return n + 1;
+                }
+            }
+        }
+        return sql.length();
+    }
+
+    /**
+     * Matches a keyword that can be made of several words separated by any
+     * whitespace, returns the index after it or i if it does not match.
+     */
+    private static int matchKeyword(String lower, int i, String keyword) {
+        int n = i;
+        for (String word : keyword.split(" ")) {
+            while (n < lower.length() && Character.isWhitespace(lower.charAt(n)) && n > i) {
+                n++;
+            }
+            if (!startsWord(lower, n, word)) {
+                return i;
+            }
+            n += word.length();
+        }
+        return n;
+    }
+
+    private static boolean startsWord(String lower, int i, String word) {
+        return lower.startsWith(word, i) && !isWordAt(lower, i + word.length());
+    }
+
+    private static boolean isWordAt(String lower, int i) {
+        return i < lower.length() && isWordChar(lower.charAt(i));
+    }
+
+    private static boolean isWordChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '_' || c == '$' || c == '@' || c == '#';
+    }
+
+    /**
+     * Identifies a single select statement without unions that can be rewritten.
+     */
+    /* package */ boolean isSimpleSelect() {
+        return select && !compound && parts[FROM] != null;
+    }
+
+    /**
+     * Identifies a single select statement, it can have unions.
+     */
+    /* package */ boolean isSelect() {
+        return select && !multiple;
+    }
+
+    /* package */ String getSQL() {
+        return sql;
+    }
+
+    /* package */ String getSelect() {
+        return parts[SELECT];
+    }
+
+    /* package */ boolean isDistinct() {
+        return parts[SELECT] != null && parts[SELECT].toLowerCase().startsWith("distinct") && !isWordAt(parts[SELECT].toLowerCase(), 8);
+    }
+
+    /**
+     * Identifies a select list that starts with TOP n, after DISTINCT or ALL.
+     */
+    /* package */ boolean hasTop() {
+        if (parts[SELECT] == null) {
+            return false;
+        }
+        String lower = parts[SELECT].toLowerCase();
+        int i = isDistinct() ? 8 : startsWord(lower, 0, "all") ? 3 : 0;
+        while (i < lower.length() && Character.isWhitespace(lower.charAt(i))) {
+            i++;
+        }
+        return startsWord(lower, i, "top");
+    }
+
+    /* package */ String getFrom() {
+        return parts[FROM];
+    }
+
+    /* package */ String getWhere() {
+        return parts[WHERE];
+    }
+
+    /* package */ String getGroupBy() {
+        return parts[GROUP];
+    }
+
+    /* package */ String getHaving() {
+        return parts[HAVING];
+    }
+
+    /* package */ String getOrderBy() {
+        return parts[ORDER];
+    }
+
+    /**
+     * Returns what follows the order by, like a limit or offset clause.
+     */
+    /* package */ String getTail() {
+        return parts[TAIL];
+    }
+
+    /**
+     * Returns the statement without its top level order by, or as written when
+     * it has none or a limit depends on it. The order by of a compound select
+     * is the one after its last select.
+     */
+    /* package */ String getWithoutOrderBy() {
+        if (isSimpleSelect()) {
+            return parts[ORDER] == null || parts[TAIL] != null ? sql : getUnordered();
+        }
+        if (!isSelect() || compoundOrder < 0 || compoundTail) {
+            return sql;
+        }
+        return text.substring(0, compoundOrder).trim();
+    }
+
+    /**
+     * Rebuilds the statement from select up to (not including) the order by.
+     */
+    /* package */ String getUnordered() {
+        return rebuild(parts[SELECT], parts[WHERE]);
+    }
+
+    /**
+     * Rebuilds the statement up to the order by with another select list and
+     * where clause, the where clause can be null.
+     */
+    /* package */ String rebuild(String select, String where) {
+        StringBuilder sb = new StringBuilder("SELECT ").append(select).append(" FROM ").append(parts[FROM]);
+        if (where != null) {
+            sb.append(" WHERE ").append(where);
+        }
+        if (parts[GROUP] != null) {
+            sb.append(" GROUP BY ").append(parts[GROUP]);
+        }
+        if (parts[HAVING] != null) {
+            sb.append(" HAVING ").append(parts[HAVING]);
+        }
+        return sb.toString();
+    }
+}
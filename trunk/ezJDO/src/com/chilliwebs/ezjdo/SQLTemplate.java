@@ -0,0 +1,67 @@
+/*
+ * Copyright 2013 Nick Hecht chilliwebs@gmail.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.chilliwebs.ezjdo;
+
+import com.chilliwebs.ezjdo.exceptions.ezJDOException;
+
+/**
+ * A rewritten statement kept by the query helpers so a query that is paged
+ * or seeked again is not parsed and rebuilt again. The template holds no
+ * values, the helper binds them for each page.
+ *
+ * @author Nick Hecht chilliwebs@gmail.com
+ */
+/* package */ final class SQLTemplate {
+
+    /* package */ static final int CACHE_SIZE = 256;
+    /* package */ final String sql;
+    /* package */ final int strategy;
+    /* package */ final String[] columns;
+    /* package */ final String totalColumn;
+    /* package */ final String totalSQL;
+
+    /**
+     * @param sql the rewritten SQL statement.
+     * @param strategy how the helper binds the values, helper specific.
+     * @param columns the seek columns, or null.
+     * @param totalColumn the column that carries the total, or null.
+     * @param totalSQL the statement that reads the total afterwards, or null.
+     */
+    /* package */ SQLTemplate(String sql, int strategy, String[] columns, String totalColumn, String totalSQL) {
+        this.sql = sql;
+        this.strategy = strategy;
+        this.columns = columns;
+        this.totalColumn = totalColumn;
+        this.totalSQL = totalSQL;
+    }
+
+    /**
+     * Builds the key a template is cached under.
+     */
+    /* package */ static String key(String kind, Class<?> clazz, int version, String sql) {
+        return kind + '\u0000' + clazz.getName() + '\u0000' + version + '\u0000' + sql;
+    }
+
+    /**
+     * Applies the template to a new results object.
+     */
+    /* package */ <T> Results<T> createResults(Class<T> clazz, Object[] values) throws ezJDOException {
+        Results<T> results = BaseObject.sql(clazz, sql, values);
+        results.totalColumn = totalColumn;
+        results.totalSQL = totalSQL;
+        return results;
+    }
+}
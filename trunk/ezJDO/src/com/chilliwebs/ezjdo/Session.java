@@ -0,0 +1,176 @@
+/*
+ * Copyright 2013 Nick Hecht chilliwebs@gmail.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.chilliwebs.ezjdo;
+
+import java.io.Closeable;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.logging.Level;
+
+/**
+ * A unit of work that returns the same object for the same class and keys.
+ * While a session is open on a thread, find(clazz, keys) returns the object
+ * the session already has without a query, and the objects that are found,
+ * inserted, deleted or reloaded on that thread keep the session up to date.
+ *
+ * <p>For example:</p> <blockquote><pre>
+ * Session session = Session.open();
+ * try {
+ *     Customer a = Customer.find(42);
+ *     Customer b = Customer.find(42); // no query, a == b
+ * } finally {
+ *     session.close();
+ * }
+ * </pre></blockquote>
+ *
+ * <p>A session belongs to the thread that opened it and is not used by the
+ * async methods. Sessions can be nested, closing a session makes the one it
+ * was opened in the current session again.</p>
+ *
+ * @author Nick Hecht chilliwebs@gmail.com
+ */
+public final class Session implements Closeable {
+
+    private static final ThreadLocal<Session> CURRENT = new ThreadLocal<Session>();
+    private final HashMap<EntityKey, BaseObject> objects = new HashMap<EntityKey, BaseObject>();
+    private final Session outer;
+    private final Thread thread;
+    private boolean closed = false;
+
+    private Session(Session outer) {
+        this.outer = outer;
+        this.thread = Thread.currentThread();
+    }
+
+    /**
+     * Opens a session on the current thread.
+     *
+     * @return the new current session.
+     */
+    public static Session open() {
+        Session session = new Session(CURRENT.get());
+        CURRENT.set(session);
+        if (BaseObject.debugging) {
+            BaseObject.log.log(Level.FINER, "Session.open() on thread {0}", session.thread.getId());
+        }
+        return session;
+    }
+
+    /**
+     * Returns the session open on the current thread, or null.
+     */
+    public static Session current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Returns the number of objects in the session.
+     */
+    public int size() {
+        return objects.size();
+    }
+
+    /**
+     * Returns true when the object is the one the session has for its keys.
+     */
+    public boolean contains(BaseObject object) {
+        return !object.newRecord && objects.get(keyOf(object)) == object;
+    }
+
+    /**
+     * Removes the object, the next find() for its keys runs a query.
+     */
+    public void evict(BaseObject object) {
+        remove(object, keyOf(object));
+    }
+
+    /**
+     * Removes all of the objects.
+     */
+    public void clear() {
+        objects.clear();
+    }
+
+    /**
+     * Closes the session, the session it was opened in becomes the current
+     * session again.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        objects.clear();
+        if (Thread.currentThread() == thread && CURRENT.get() == this) {
+            if (outer == null) {
+                CURRENT.remove();
+            } else {
+                CURRENT.set(outer);
+            }
+        }
+        if (BaseObject.debugging) {
+            BaseObject.log.log(Level.FINER, "Session.close() on thread {0}", thread.getId());
+        }
+    }
+
+    /* package */ BaseObject get(EntityKey key) {
+        return objects.get(key);
+    }
+
+    /**
+     * Adds an object read from or written to the database, the first object
+     * for a key stays in the session.
+     */
+    /* package */ BaseObject put(BaseObject object) {
+        if (object.newRecord || object.originalValues == null) {
+            return object;
+        }
+        EntityKey key = keyOf(object);
+        BaseObject existing = objects.get(key);
+        if (existing != null) {
+            return existing;
+        }
+        objects.put(key, object);
+        return object;
+    }
+
+    /**
+     * Removes the object if it is the one the session has for the key.
+     */
+    /* package */ void remove(BaseObject object, EntityKey key) {
+        if (key != null && objects.get(key) == object) {
+            objects.remove(key);
+        }
+    }
+
+    /**
+     * Removes every object of the class, after a delete that could match any
+     * of them.
+     */
+    /* package */ void removeAll(String className) {
+        Iterator<EntityKey> keys = objects.keySet().iterator();
+        while (keys.hasNext()) {
+            if (keys.next().getClassName().equals(className)) {
+                keys.remove();
+            }
+        }
+    }
+
+    /* package */ static EntityKey keyOf(BaseObject object) {
+        return new EntityKey(object.getClass().getName(), object.getKeyValues());
+    }
+}
@@ -0,0 +1,319 @@
+/*
+ * Copyright 2013 Nick Hecht chilliwebs@gmail.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.chilliwebs.ezjdo;
+
+import com.chilliwebs.ezjdo.exceptions.ezJDOException;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.RandomAccess;
+import java.util.logging.Level;
+
+/**
+ * A read only list of results that are too many to keep on the heap. The
+ * first rows are kept as objects, after that every row is serialized to a
+ * temp file that is memory mapped for reading. The rows are written through
+ * one buffered object stream that is reset before every row, so each row can
+ * be read on its own and the stream does not hold on to the rows written.
+ * BaseObject rows are stored as
+ * the values they were read with and built again on get(), so changes made
+ * to an object that came from the file are not kept in the list. Other rows
+ * must be Serializable.
+ *
+ * <p>The list can be read in any order and as often as needed without
+ * running the query again. Close it to delete the temp file.</p>
+ *
+ * @author Nick Hecht chilliwebs@gmail.com
+ */
+public class SpillingResultList<T> extends AbstractList<T> implements RandomAccess, Closeable {
+
+    private static final int SEGMENT_SIZE = 64 * 1024 * 1024; // bytes mapped at a time
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final byte[] STREAM_HEADER = {(byte) 0xAC, (byte) 0xED, 0x00, 0x05}; // written once at the start of the file
+    private final Class<T> clazz;
+    private final boolean objects;
+    private final ArrayList<T> heapRows;
+    private final int maxHeapRows;
+    private File file;
+    private RandomAccessFile spill;
+    private CountingOutputStream written;
+    private ObjectOutputStream out;
+    private long[] offsets = new long[0];
+    private int spilledRows = 0;
+    private long spilledBytes = 0;
+    private long[] segmentStarts = new long[0];
+    private MappedByteBuffer[] segments;
+    private int segmentCount = 0;
+    private boolean closed = false;
+
+    /**
+     * Reads every row of the iterator.
+     *
+     * @param clazz the class of the rows.
+     * @param rows the rows to read.
+     * @param maxHeapRows the number of rows kept as objects.
+     */
+    /* package */ SpillingResultList(Class<T> clazz, Iterator<T> rows, int maxHeapRows) throws ezJDOException {
+        this(clazz, maxHeapRows);
+        try {
+            while (rows.hasNext()) {
+                append(rows.next());
+            }
+            finish();
+        } catch (RuntimeException ex) {
+            close();
+            Results.close(rows); // releases the statement when the rows were not all read
+            throw ex;
+        } catch (ezJDOException ex) {
+            close();
+            Results.close(rows);
+            throw ex;
+        }
+    }
+
+    /**
+     * Creates an empty list, fill it with append() and call finish() before
+     * reading it.
+     */
+    /* package */ SpillingResultList(Class<T> clazz, int maxHeapRows) {
+        this.clazz = clazz;
+        this.objects = BaseObject.class.isAssignableFrom(clazz);
+        this.maxHeapRows = maxHeapRows;
+        this.heapRows = new ArrayList<T>(Math.min(maxHeapRows, ResultList.CHUNK_SIZE));
+    }
+
+    /* package */ void append(T row) throws ezJDOException {
+        try {
+            write(row);
+        } catch (IOException ex) {
+            close();
+            throw new ezJDOException("The results could not be written to the temp file.", ex);
+        }
+    }
+
+    private void write(T row) throws IOException, ezJDOException {
+        if (heapRows.size() < maxHeapRows) {
+            heapRows.add(row);
+            return;
+        }
+        if (out == null) {
+            file = File.createTempFile("ezjdo", ".rows");
+            file.deleteOnExit();
+            written = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+            out = new ObjectOutputStream(written);
+            if (BaseObject.debugging) {
+                BaseObject.log.log(Level.INFO, "spilling results past {0} rows to {1}", new Object[]{maxHeapRows, file});
+            }
+        }
+        Object value = toValue(row);
+        if (spilledRows == offsets.length) {
+            offsets = Arrays.copyOf(offsets, Math.max(1024, offsets.length * 2));
+        }
+        offsets[spilledRows++] = written.count;
+        out.reset(); // the row must not refer back to the rows before it
+        out.writeObject(value);
+        out.flush(); // into the buffer, so the count is where the next row starts
+        spilledBytes = written.count;
+    }
+
+    private Object toValue(T row) throws ezJDOException {
+        Object value;
+        if (objects) {
+            value = ((BaseObject) row).snapshot();
+        } else if (row == null || row instanceof Serializable) {
+            value = row;
+        } else {
+            throw new ezJDOException("The " + clazz.getName() + " class must be Serializable to spill the results to disk.");
+        }
+        return value;
+    }
+
+    /* package */ void finish() throws ezJDOException {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.close();
+            out = null;
+            // a row never crosses into the next segment so it can be read from one buffer
+            for (int row = 0; row < spilledRows; row++) {
+                long start = offsets[row];
+                long end = row + 1 < spilledRows ? offsets[row + 1] : spilledBytes;
+                if (segmentCount == 0 || (start > segmentStarts[segmentCount - 1] && end - segmentStarts[segmentCount - 1] > SEGMENT_SIZE)) {
+                    if (segmentCount == segmentStarts.length) {
+                        segmentStarts = Arrays.copyOf(segmentStarts, Math.max(16, segmentStarts.length * 2));
+                    }
+                    segmentStarts[segmentCount++] = start;
+                }
+            }
+            spill = new RandomAccessFile(file, "r");
+        } catch (IOException ex) {
+            close();
+            throw new ezJDOException("The results could not be written to the temp file.", ex);
+        }
+        segments = new MappedByteBuffer[segmentCount];
+        FileChannel channel = spill.getChannel();
+        try {
+            for (int i = 0; i < segmentCount; i++) {
+                long end = i + 1 < segmentCount ? segmentStarts[i + 1] : spilledBytes;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, segmentStarts[i], end - segmentStarts[i]);
+            }
+        } catch (IOException ex) {
+            close();
+            throw new ezJDOException("The temp file could not be mapped.", ex);
+        }
+        if (BaseObject.debugging) {
+            BaseObject.log.log(Level.INFO, "spilled {0} rows ({1} bytes) to {2}", new Object[]{spilledRows, spilledBytes, file});
+        }
+    }
+
+    @Override
+    public T get(int index) {
+        if (index < heapRows.size()) {
+            return heapRows.get(index);
+        }
+        int row = index - heapRows.size();
+        if (row >= spilledRows || index < 0) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+        }
+        if (closed) {
+            throw new IllegalStateException("The list was closed.");
+        }
+        long start = offsets[row];
+        long end = row + 1 < spilledRows ? offsets[row + 1] : spilledBytes;
+        int segment = Arrays.binarySearch(segmentStarts, 0, segmentCount, start);
+        if (segment < 0) {
+            segment = -segment - 2;
+        }
+        ByteBuffer buffer = segments[segment].duplicate();
+        buffer.position((int) (start - segmentStarts[segment]));
+        byte[] bytes = new byte[STREAM_HEADER.length + (int) (end - start)];
+        System.arraycopy(STREAM_HEADER, 0, bytes, 0, STREAM_HEADER.length);
+        buffer.get(bytes, STREAM_HEADER.length, (int) (end - start));
+        try {
+            ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes));
+            Object value = in.readObject();
+            in.close();
+            if (objects) {
+                return BaseObject.hydrate(clazz, (Object[]) value);
+            }
+            return clazz.cast(value);
+        } catch (IOException ex) {
+            throw new RuntimeException(new ezJDOException("The row could not be read from the temp file.", ex));
+        } catch (ClassNotFoundException ex) {
+            throw new RuntimeException(new ezJDOException("The row could not be read from the temp file.", ex));
+        } catch (ezJDOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    @Override
+    public int size() {
+        return heapRows.size() + spilledRows;
+    }
+
+    /**
+     * @return the number of rows kept in the temp file.
+     */
+    public int getSpilledRows() {
+        return spilledRows;
+    }
+
+    /**
+     * @return the size of the temp file.
+     */
+    public long getSpilledBytes() {
+        return spilledBytes;
+    }
+
+    /**
+     * Deletes the temp file, the rows kept on the heap can still be read.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        segments = null;
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException ex) {
+                BaseObject.log.log(Level.FINEST, "could not close the spill file", ex);
+            }
+            out = null;
+        }
+        if (spill != null) {
+            try {
+                spill.close();
+            } catch (IOException ex) {
+                BaseObject.log.log(Level.FINEST, "could not close the spill file", ex);
+            }
+        }
+        if (file != null) {
+            if (!file.delete()) {
+                BaseObject.log.log(Level.FINEST, "could not delete the spill file {0}, it is deleted on exit", file);
+            }
+        }
+    }
+
+    /**
+     * Counts the bytes written so the offset of every row is known without
+     * flushing the buffer to the file.
+     */
+    private static final class CountingOutputStream extends FilterOutputStream {
+
+        private long count = 0;
+
+        private CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        @Override
+        public void flush() {
+            // the object stream flushes after every row, the buffer is only written out when full or closed
+        }
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2013 Nick Hecht chilliwebs@gmail.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.chilliwebs.ezjdo.annotations;
+
+import java.lang.annotation.*;
+
+/**
+ * Keeps the objects of the class in a cache that is shared by every thread,
+ * for reference tables that are read much more often than they change.
+ *
+ * <p>find() and findFirst() are answered from the cache while the entry is
+ * younger than the ttl. The cache keeps copies of the values that were read,
+ * so every call still returns a new object. save(), delete() and deleteAll()
+ * on the class remove the entries they could change.
+ *
+ * @author Nick Hecht chilliwebs@gmail.com
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface Cached {
+
+    /**
+     * the most objects kept, the least recently used is dropped first.
+     */
+    int maxEntries() default 1000;
+
+    /**
+     * the seconds an entry is used before it is read again.
+     */
+    long ttl() default 300;
+}
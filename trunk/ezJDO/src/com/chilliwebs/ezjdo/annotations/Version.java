@@ -0,0 +1,35 @@
+/*
+ * Copyright 2013 Nick Hecht chilliwebs@gmail.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.chilliwebs.ezjdo.annotations;
+
+import java.lang.annotation.*;
+
+/**
+ * Indicates the attribute is a version column used for optimistic locking.
+ *
+ * <p>When a class has a version attribute every update and delete is limited
+ * to the version that was loaded, and save() increments the version. If the
+ * row was changed by someone else in the mean time the statement will not
+ * match any rows and an ezJDOConcurrencyException is thrown. The attribute must
+ * be a whole number type (Integer, Long, Short or BigDecimal).
+ *
+ * @author Nick Hecht chilliwebs@gmail.com
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.FIELD)
+public @interface Version {
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2013 Nick Hecht chilliwebs@gmail.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.chilliwebs.ezjdo.tests;
+
+import com.chilliwebs.ezjdo.BaseObject;
+import com.chilliwebs.ezjdo.ChangeLog;
+import com.chilliwebs.ezjdo.annotations.BaseConfig;
+import com.chilliwebs.ezjdo.annotations.Cached;
+import com.chilliwebs.ezjdo.annotations.Column;
+import com.chilliwebs.ezjdo.annotations.Key;
+import com.chilliwebs.ezjdo.exceptions.ezJDOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the change log records the writes of this node and removes the
+ * writes of other nodes from the entity cache, including rows that commit
+ * after a row with a higher sequence number was read.
+ *
+ * @author Nick Hecht chilliwebs@gmail.com
+ */
+public class ChangeLogTest {
+
+    private static final String URL = "jdbc:h2:mem:ezjdo_changelog;DB_CLOSE_DELAY=-1";
+    private static final String OTHER_NODE = "other-node";
+    private static final long POLL_MILLIS = 20;
+    private static Connection connection;
+
+    static {
+        // the class names a system property that holds the connection string
+        System.setProperty("ezjdo.test.changelog", URL);
+    }
+
+    @Cached
+    @BaseConfig(sqlDriverClass = "org.h2.Driver", connectionString = "ezjdo.test.changelog", tableName = "cl_item")
+    public static class Item extends BaseObject {
+
+        @Key
+        private Integer id;
+        @Column(length = 50)
+        private String name;
+
+        public Item() {
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public void setName(String name) {
+            this.name = name;
+        }
+
+        public static Item find(Integer id) throws ezJDOException {
+            return find(Item.class, id);
+        }
+    }
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        Class.forName("org.h2.Driver");
+        connection = DriverManager.getConnection(URL);
+        Statement statement = connection.createStatement();
+        statement.execute("CREATE TABLE cl_item (id INTEGER PRIMARY KEY, name VARCHAR(50))");
+        statement.execute("INSERT INTO cl_item VALUES (1, 'one'), (2, 'two'), (3, 'three')");
+        statement.close();
+        ChangeLog.start(Item.class, POLL_MILLIS);
+    }
+
+    @AfterClass
+    public static void tearDownClass() throws Exception {
+        ChangeLog.stop();
+        Statement statement = connection.createStatement();
+        statement.execute("DROP TABLE ezjdo_changelog");
+        statement.execute("DROP TABLE cl_item");
+        statement.close();
+        connection.close();
+    }
+
+    @Test
+    public void publishesWrites() throws Exception {
+        Item item = Item.find(1);
+        item.setName("uno");
+        item.save();
+
+        PreparedStatement prepStmt = connection.prepareStatement("SELECT key_values FROM ezjdo_changelog WHERE table_name = ? AND node = ?");
+        prepStmt.setString(1, "cl_item");
+        prepStmt.setString(2, ChangeLog.getNode());
+        ResultSet results = prepStmt.executeQuery();
+        assertTrue(results.next());
+        assertEquals("1", results.getString(1));
+        results.close();
+        prepStmt.close();
+    }
+
+    @Test
+    public void evictsWritesOfOtherNodes() throws Exception {
+        assertEquals("two", Item.find(2).getName());
+        update(2, "dos"); // behind the back of the cache
+        assertEquals("two", Item.find(2).getName());
+
+        insertChange(maxSeq() + 1, "cl_item", "2");
+        assertEquals("dos", waitForName(2, "dos"));
+    }
+
+    @Test
+    public void readsRowsCommittedAfterAHigherSeq() throws Exception {
+        assertEquals("three", Item.find(3).getName());
+        update(3, "tres");
+        long seq = maxSeq();
+
+        // the higher seq commits first and is read, then the lower one commits
+        insertChange(seq + 2, "cl_unrelated", null);
+        Thread.sleep(POLL_MILLIS * 10);
+        assertEquals("three", Item.find(3).getName());
+        insertChange(seq + 1, "cl_item", "3");
+        assertEquals("tres", waitForName(3, "tres"));
+    }
+
+    private static void update(int id, String name) throws Exception {
+        PreparedStatement prepStmt = connection.prepareStatement("UPDATE cl_item SET name = ? WHERE id = ?");
+        prepStmt.setString(1, name);
+        prepStmt.setInt(2, id);
+        prepStmt.executeUpdate();
+        prepStmt.close();
+    }
+
+    private static long maxSeq() throws Exception {
+        Statement statement = connection.createStatement();
+        ResultSet results = statement.executeQuery("SELECT COALESCE(MAX(seq), 0) FROM ezjdo_changelog");
+        results.next();
+        long seq = results.getLong(1);
+        results.close();
+        statement.close();
+        return seq;
+    }
+
+    private static void insertChange(long seq, String table, String keyValues) throws Exception {
+        PreparedStatement prepStmt = connection.prepareStatement("INSERT INTO ezjdo_changelog (seq, table_name, key_values, node, created) VALUES (?, ?, ?, ?, ?)");
+        prepStmt.setLong(1, seq);
+        prepStmt.setString(2, table);
+        prepStmt.setString(3, keyValues);
+        prepStmt.setString(4, OTHER_NODE);
+        prepStmt.setTimestamp(5, new Timestamp(System.currentTimeMillis()));
+        prepStmt.executeUpdate();
+        prepStmt.close();
+        // keep the identity of the writes of this node past the seq set here
+        Statement statement = connection.createStatement();
+        statement.execute("ALTER TABLE ezjdo_changelog ALTER COLUMN seq RESTART WITH " + (maxSeq() + 1));
+        statement.close();
+    }
+
+    private static String waitForName(int id, String expected) throws Exception {
+        long deadline = System.currentTimeMillis() + 5000;
+        String name = Item.find(id).getName();
+        while (!expected.equals(name) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(POLL_MILLIS);
+            name = Item.find(id).getName();
+        }
+        return name;
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2013 Nick Hecht chilliwebs@gmail.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.chilliwebs.ezjdo.tests;
+
+import com.chilliwebs.ezjdo.BaseObject;
+import com.chilliwebs.ezjdo.ResultList;
+import com.chilliwebs.ezjdo.annotations.BaseConfig;
+import com.chilliwebs.ezjdo.annotations.Key;
+import com.chilliwebs.ezjdo.annotations.Many;
+import com.chilliwebs.ezjdo.exceptions.ezJDOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks that loadMany() hands every parent the many objects that belong to
+ * it, with one query for all of the parents.
+ *
+ * @author Nick Hecht chilliwebs@gmail.com
+ */
+public class LoadManyTest {
+
+    private static final String URL = "jdbc:h2:mem:ezjdo_loadmany;DB_CLOSE_DELAY=-1";
+    private static Connection connection;
+
+    static {
+        // the classes name a system property that holds the connection string
+        System.setProperty("ezjdo.test.loadmany", URL);
+    }
+
+    @BaseConfig(sqlDriverClass = "org.h2.Driver", connectionString = "ezjdo.test.loadmany", tableName = "lm_parent")
+    public static class Parent extends BaseObject {
+
+        @Key
+        @Many(object = Child.class, column = "parentId")
+        private Integer id;
+        private String name;
+
+        public Parent() {
+        }
+
+        public static Parent find(Integer id) throws ezJDOException {
+            return find(Parent.class, id);
+        }
+
+        public static IdentityHashMap<Parent, ResultList<Child>> children(List<Parent> parents) throws ezJDOException {
+            return loadMany(parents, Child.class);
+        }
+    }
+
+    @BaseConfig(sqlDriverClass = "org.h2.Driver", connectionString = "ezjdo.test.loadmany", tableName = "lm_child")
+    public static class Child extends BaseObject {
+
+        @Key
+        private Integer id;
+        private Long parentId;
+        private String name;
+
+        public Child() {
+        }
+
+        public String getName() {
+            return name;
+        }
+    }
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        Class.forName("org.h2.Driver");
+        connection = DriverManager.getConnection(URL);
+        Statement statement = connection.createStatement();
+        statement.execute("CREATE TABLE lm_parent (id INTEGER PRIMARY KEY, name VARCHAR(50))");
+        // a wider key type than the parent key, the values must still match
+        statement.execute("CREATE TABLE lm_child (id INTEGER PRIMARY KEY, parentId BIGINT, name VARCHAR(50))");
+        statement.execute("INSERT INTO lm_parent VALUES (1, 'one'), (2, 'two'), (3, 'three')");
+        statement.execute("INSERT INTO lm_child VALUES (10, 1, 'a'), (11, 3, 'b'), (12, 1, 'c'), (13, 4, 'orphan')");
+        statement.close();
+    }
+
+    @AfterClass
+    public static void tearDownClass() throws Exception {
+        Statement statement = connection.createStatement();
+        statement.execute("DROP TABLE lm_child");
+        statement.execute("DROP TABLE lm_parent");
+        statement.close();
+        connection.close();
+    }
+
+    @Test
+    public void groupsChildrenByParent() throws ezJDOException {
+        Parent one = Parent.find(1);
+        Parent two = Parent.find(2);
+        Parent three = Parent.find(3);
+        IdentityHashMap<Parent, ResultList<Child>> loaded = Parent.children(Arrays.asList(one, two, three));
+
+        assertEquals(3, loaded.size());
+        assertEquals(Arrays.asList("a", "c"), names(loaded.get(one)));
+        assertTrue(loaded.get(two).isEmpty());
+        assertEquals(Arrays.asList("b"), names(loaded.get(three)));
+    }
+
+    @Test
+    public void keepsParentsWithTheSameKeyApart() throws ezJDOException {
+        Parent first = Parent.find(1);
+        Parent second = Parent.find(1);
+        IdentityHashMap<Parent, ResultList<Child>> loaded = Parent.children(Arrays.asList(first, second));
+
+        assertEquals(2, loaded.size());
+        assertEquals(Arrays.asList("a", "c"), names(loaded.get(first)));
+        assertEquals(Arrays.asList("a", "c"), names(loaded.get(second)));
+    }
+
+    private static List<String> names(List<Child> children) {
+        String[] names = new String[children.size()];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = children.get(i).getName();
+        }
+        Arrays.sort(names);
+        return Arrays.asList(names);
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2013 Nick Hecht chilliwebs@gmail.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.chilliwebs.ezjdo.tests;
+
+import com.chilliwebs.ezjdo.BaseObject;
+import com.chilliwebs.ezjdo.Session;
+import com.chilliwebs.ezjdo.annotations.BaseConfig;
+import com.chilliwebs.ezjdo.annotations.Cached;
+import com.chilliwebs.ezjdo.annotations.Column;
+import com.chilliwebs.ezjdo.annotations.Key;
+import com.chilliwebs.ezjdo.annotations.Version;
+import com.chilliwebs.ezjdo.exceptions.ezJDOConcurrencyException;
+import com.chilliwebs.ezjdo.exceptions.ezJDOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks that a version conflict removes the object from the caches, so the
+ * next find() reads the row the database has now and can be saved.
+ *
+ * @author Nick Hecht chilliwebs@gmail.com
+ */
+public class VersionConflictTest {
+
+    private static final String URL = "jdbc:h2:mem:ezjdo_version;DB_CLOSE_DELAY=-1";
+    private static Connection connection;
+
+    static {
+        // the class names a system property that holds the connection string
+        System.setProperty("ezjdo.test.version", URL);
+    }
+
+    @Cached
+    @BaseConfig(sqlDriverClass = "org.h2.Driver", connectionString = "ezjdo.test.version", tableName = "vc_item")
+    public static class Item extends BaseObject {
+
+        @Key
+        private Integer id;
+        @Column(length = 50)
+        private String name;
+        @Version
+        private Integer version;
+
+        public Item() {
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public void setName(String name) {
+            this.name = name;
+        }
+
+        public Integer getVersion() {
+            return version;
+        }
+
+        public static Item find(Integer id) throws ezJDOException {
+            return find(Item.class, id);
+        }
+    }
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        Class.forName("org.h2.Driver");
+        connection = DriverManager.getConnection(URL);
+        Statement statement = connection.createStatement();
+        statement.execute("CREATE TABLE vc_item (id INTEGER PRIMARY KEY, name VARCHAR(50), version INTEGER)");
+        statement.execute("INSERT INTO vc_item VALUES (1, 'one', 1), (2, 'two', 1)");
+        statement.close();
+    }
+
+    @AfterClass
+    public static void tearDownClass() throws Exception {
+        Statement statement = connection.createStatement();
+        statement.execute("DROP TABLE vc_item");
+        statement.close();
+        connection.close();
+    }
+
+    @Test
+    public void saveConflictRefindsTheNewVersion() throws Exception {
+        Item item = Item.find(1);
+        assertEquals(Integer.valueOf(1), item.getVersion());
+        write("UPDATE vc_item SET name = 'uno', version = 2 WHERE id = 1"); // behind the back of the cache
+
+        item.setName("first");
+        try {
+            item.save();
+            fail("the save of an old version must fail");
+        } catch (ezJDOConcurrencyException ex) {
+        }
+
+        Item found = Item.find(1);
+        assertEquals("uno", found.getName());
+        assertEquals(Integer.valueOf(2), found.getVersion());
+        found.setName("first");
+        found.save();
+        assertEquals(Integer.valueOf(3), Item.find(1).getVersion());
+    }
+
+    @Test
+    public void deleteConflictRefindsTheNewVersionInASession() throws Exception {
+        Session session = Session.open();
+        try {
+            Item item = Item.find(2);
+            write("UPDATE vc_item SET name = 'dos', version = 2 WHERE id = 2");
+            try {
+                item.delete();
+                fail("the delete of an old version must fail");
+            } catch (ezJDOConcurrencyException ex) {
+            }
+            assertFalse(session.contains(item));
+
+            Item found = Item.find(2);
+            assertNotSame(item, found);
+            assertEquals(Integer.valueOf(2), found.getVersion());
+            found.delete();
+        } finally {
+            session.close();
+        }
+        assertEquals(0, count("SELECT COUNT(*) FROM vc_item WHERE id = 2"));
+    }
+
+    private static void write(String sql) throws Exception {
+        Statement statement = connection.createStatement();
+        statement.executeUpdate(sql);
+        statement.close();
+    }
+
+    private static int count(String sql) throws Exception {
+        Statement statement = connection.createStatement();
+        ResultSet results = statement.executeQuery(sql);
+        results.next();
+        int count = results.getInt(1);
+        results.close();
+        statement.close();
+        return count;
+    }
+}